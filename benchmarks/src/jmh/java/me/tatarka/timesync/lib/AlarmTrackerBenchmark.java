@@ -0,0 +1,206 @@
+package me.tatarka.timesync.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Counts the alarm calls that reach the AlarmManager when rescheduling, each of which is a binder
+ * transaction. With {@code tracked} false every call from the scheduler is passed on, like the
+ * service used to do, with it true they go through an {@link AlarmTracker}.
+ *
+ * <p>Each alarm call needs the listener's PendingIntent. With {@code cached} false a new Intent is
+ * built and passed to {@code PendingIntent.getService()}, another binder transaction, for every
+ * call like the service used to do, with it true they come from an {@link AlarmIntentCache}. Stubs
+ * stand in for the Intent and PendingIntent, with the same extras as the service's.</p>
+ *
+ * <p>The number of calls per operation is printed at the end of each run, allocations are reported
+ * by the gc profiler.</p>
+ */
+@State(Scope.Thread)
+public class AlarmTrackerBenchmark {
+    private static final long MINUTES = 60 * 1000;
+    // 2017-03-12 12:00 UTC.
+    private static final long TIME = 1489320000000L;
+    private static final int RTC_WAKEUP = 0;
+    private static final int RTC = 1;
+
+    @Param({"20"})
+    public int listenerCount;
+
+    @Param({"false", "true"})
+    public boolean tracked;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private FakeClock clock;
+    private boolean powerConnected;
+    private Scheduler scheduler;
+    private AlarmTracker tracker;
+    private AlarmTracker.Alarms alarms;
+    private AlarmIntentCache<StubPendingIntent> intentCache;
+    private AlarmIntentCache.Factory<StubPendingIntent> intentFactory;
+    // The PendingIntent of the last alarm call, so that creating it isn't optimized away.
+    private StubPendingIntent lastIntent;
+    private String[] names;
+    private int next;
+    private long sets;
+    private long cancels;
+    private long getServiceCalls;
+    private long intents;
+    private long ops;
+
+    @Setup
+    public void setup() {
+        intentFactory = new AlarmIntentCache.Factory<StubPendingIntent>() {
+            @Override
+            public StubPendingIntent create(String name) {
+                intents++;
+                StubIntent intent = new StubIntent("timesync://" + name);
+                intent.extras.put("type", 2);
+                intent.extras.put("name", name);
+                intent.extras.put("from_alarm", true);
+                getServiceCalls++;
+                return new StubPendingIntent(intent);
+            }
+        };
+        intentCache = new AlarmIntentCache<>();
+        alarms = new AlarmTracker.Alarms() {
+            @Override
+            public void set(String name, int type, long time) {
+                lastIntent = pendingIntent(name);
+                sets++;
+            }
+
+            @Override
+            public void cancel(String name) {
+                lastIntent = pendingIntent(name);
+                cancels++;
+            }
+        };
+        tracker = new AlarmTracker();
+        Map<String, TestConfig> listeners = new LinkedHashMap<>();
+        names = new String[listenerCount];
+        for (int i = 0; i < listenerCount; i++) {
+            names[i] = "com.example.Sync" + i;
+            listeners.put(names[i], new TestConfig((i + 1) * 5 * MINUTES, 5 * MINUTES));
+        }
+        clock = new FakeClock(TIME);
+        AlarmSink sink = new AlarmSink() {
+            @Override
+            public void set(String name, long time) {
+                if (tracked) {
+                    tracker.set(name, time);
+                } else {
+                    alarms.set(name, type(), time);
+                }
+            }
+
+            @Override
+            public void cancel(String name) {
+                if (tracked) {
+                    tracker.cancel(name);
+                } else {
+                    alarms.cancel(name);
+                }
+            }
+
+            @Override
+            public void setBatch(long time, List<String> names) {
+            }
+
+            @Override
+            public void cancelBatch() {
+            }
+        };
+        scheduler = new Scheduler(clock, sink, new MemoryStateStore(), listeners, false);
+        scheduler.start();
+        commit();
+        sets = 0;
+        cancels = 0;
+        getServiceCalls = 0;
+        intents = 0;
+        ops = 0;
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf(Locale.US, "%nAlarmManager calls per op: %.3f sets, %.3f cancels%n",
+                (double) sets / ops, (double) cancels / ops);
+        System.out.printf(Locale.US, "PendingIntent.getService() calls per op: %.3f, Intents per op: %.3f%n",
+                (double) getServiceCalls / ops, (double) intents / ops);
+    }
+
+    /**
+     * A sync succeeded and the listener is scheduled for its next interval.
+     */
+    @Benchmark
+    public void syncSucceeded() {
+        clock.advance(1000);
+        scheduler.onSyncSucceeded(names[next]);
+        next = (next + 1) % names.length;
+        commit();
+    }
+
+    /**
+     * The service was started again without anything having changed.
+     */
+    @Benchmark
+    public void restart() {
+        scheduler.start();
+        commit();
+    }
+
+    /**
+     * The power cable was plugged in or out, which changes the type of every alarm.
+     */
+    @Benchmark
+    public void powerChanged() {
+        powerConnected = !powerConnected;
+        scheduler.onPowerChanged(powerConnected);
+        commit();
+    }
+
+    private void commit() {
+        ops++;
+        scheduler.commit();
+        if (tracked) {
+            tracker.apply(type(), alarms);
+        }
+    }
+
+    private int type() {
+        return powerConnected ? RTC_WAKEUP : RTC;
+    }
+
+    private StubPendingIntent pendingIntent(String name) {
+        return cached ? intentCache.get(name, intentFactory) : intentFactory.create(name);
+    }
+
+    private static final class StubIntent {
+        final String data;
+        final Map<String, Object> extras = new HashMap<>();
+
+        StubIntent(String data) {
+            this.data = data;
+        }
+    }
+
+    private static final class StubPendingIntent {
+        final StubIntent intent;
+
+        StubPendingIntent(StubIntent intent) {
+            this.intent = intent;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package me.tatarka.timesync.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.TimeZone;
+
+@State(Scope.Thread)
+public class EventCalculatorBenchmark {
+    // TimeSync.Config can't be loaded on the jvm.
+    private static final long MINUTES = 60 * 1000;
+    private static final long HOURS = 60 * MINUTES;
+    private static final long DAYS = 24 * HOURS;
+
+    // 2017-03-12 12:00 UTC, a day with a DST transition in America/New_York.
+    private static final long TIME = 1489320000000L;
+
+    @Param({"UTC", "America/New_York"})
+    public String timeZoneId;
+
+    private TimeZone timeZone;
+    private long time;
+
+    @Setup
+    public void setup() {
+        timeZone = TimeZone.getTimeZone(timeZoneId);
+        time = TIME;
+    }
+
+    /**
+     * The steady state, every call falls within the same day.
+     */
+    @Benchmark
+    public long getNextEventSameDay() {
+        time += 1;
+        if (time > TIME + HOURS) time = TIME;
+        return EventCalculator.getNextEvent(time, 5 * MINUTES, timeZone);
+    }
+
+    /**
+     * Every call is on a different day, so midnight has to be calculated each time.
+     */
+    @Benchmark
+    public long getNextEventNewDay() {
+        time += DAYS;
+        return EventCalculator.getNextEvent(time, 5 * MINUTES, timeZone);
+    }
+
+    /**
+     * Looks up the default timezone on every call, like callers that don't pass one in.
+     */
+    @Benchmark
+    public long getNextEventDefaultTimeZone() {
+        return EventCalculator.getNextEvent(TIME, 5 * MINUTES);
+    }
+
+}
@@ -0,0 +1,34 @@
+package me.tatarka.timesync.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+@State(Scope.Thread)
+public class MathUtilBenchmark {
+    private long seed;
+    private long range;
+    private long span;
+    private long interval;
+
+    @Setup
+    public void setup() {
+        seed = new Random(0).nextLong();
+        range = 5 * 60 * 1000;
+        span = 12345678;
+        interval = 5 * 60 * 1000;
+    }
+
+    @Benchmark
+    public long randomInRange() {
+        return MathUtil.randomInRange(seed, 0, range);
+    }
+
+    @Benchmark
+    public long divCeil() {
+        return MathUtil.divCeil(span, interval);
+    }
+}
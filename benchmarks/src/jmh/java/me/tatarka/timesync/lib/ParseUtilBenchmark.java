@@ -0,0 +1,21 @@
+package me.tatarka.timesync.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks parsing the {@code every} and {@code range} attributes, as done by {@code
+ * TimeSyncParser} for every listener.
+ */
+@State(Scope.Thread)
+public class ParseUtilBenchmark {
+    @Param({"5 seconds", "1 day", "300000"})
+    public String input;
+
+    @Benchmark
+    public long parseUnitTimeSpan() {
+        return ParseUtil.parseUnitTimeSpan(input);
+    }
+}
@@ -0,0 +1,89 @@
+package me.tatarka.timesync.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@State(Scope.Thread)
+public class SchedulerBenchmark {
+    private static final long MINUTES = 60 * 1000;
+
+    // 2017-03-12 12:00 UTC.
+    private static final long TIME = 1489320000000L;
+
+    @Param({"1", "50"})
+    public int listenerCount;
+
+    @Param({"false", "true"})
+    public boolean coalesce;
+
+    private FakeClock clock;
+    private Scheduler scheduler;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setup() {
+        clock = new FakeClock(TIME);
+        Map<String, TestConfig> listeners = new LinkedHashMap<>();
+        names = new String[listenerCount];
+        for (int i = 0; i < listenerCount; i++) {
+            names[i] = "com.example.Sync" + i;
+            listeners.put(names[i], new TestConfig((i + 1) * 5 * MINUTES, 5 * MINUTES));
+        }
+        scheduler = new Scheduler(clock, new NoAlarms(), new MemoryStateStore(), listeners, coalesce);
+        scheduler.start();
+        scheduler.commit();
+    }
+
+    /**
+     * What happens after every successful sync.
+     */
+    @Benchmark
+    public long syncSucceeded() {
+        clock.advance(1000);
+        String name = names[next];
+        next = (next + 1) % names.length;
+        scheduler.onSyncSucceeded(name);
+        scheduler.commit();
+        return scheduler.nextFireTime();
+    }
+
+    /**
+     * Moves the clock past the next sync, and syncs everything that is due.
+     */
+    @Benchmark
+    public int pollDue() {
+        clock.set(scheduler.nextFireTime());
+        List<String> due = scheduler.pollDue();
+        for (int i = 0; i < due.size(); i++) {
+            scheduler.onSyncSucceeded(due.get(i));
+        }
+        scheduler.commit();
+        return due.size();
+    }
+
+    private static final class NoAlarms implements AlarmSink {
+        @Override
+        public void set(String name, long time) {
+        }
+
+        @Override
+        public void cancel(String name) {
+        }
+
+        @Override
+        public void setBatch(long time, List<String> names) {
+        }
+
+        @Override
+        public void cancelBatch() {
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package me.tatarka.timesync.lib;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a {@code TimeSyncRegistry} from every class annotated with {@code TimeSyncListener}.
+ * Time spans are parsed here so that nothing has to be parsed at runtime, and listeners are
+ * created with generated factories instead of reflection.
+ *
+ * <p>The registry is generated in the common package of all annotated classes. If there is none,
+ * set it with the {@code timesync.package} processor option.</p>
+ */
+@SupportedAnnotationTypes(TimeSyncProcessor.LISTENER)
+@SupportedOptions(TimeSyncProcessor.OPTION_PACKAGE)
+public class TimeSyncProcessor extends AbstractProcessor {
+    static final String LISTENER = "me.tatarka.timesync.lib.TimeSyncListener";
+    static final String TIME_SYNC = "me.tatarka.timesync.lib.TimeSync";
+    static final String TIME_SYNC_GROUP = "me.tatarka.timesync.lib.TimeSyncGroup";
+    static final String BACKOFF_POLICY = "me.tatarka.timesync.lib.BackoffPolicy";
+    static final String OPTION_PACKAGE = "timesync.package";
+    static final String REGISTRY_NAME = "GeneratedTimeSyncRegistry";
+
+    private boolean generated;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement listenerType = processingEnv.getElementUtils().getTypeElement(LISTENER);
+        TypeElement timeSyncType = processingEnv.getElementUtils().getTypeElement(TIME_SYNC);
+        if (listenerType == null || timeSyncType == null) return false;
+
+        Set<? extends Element> elements = roundEnv.getElementsAnnotatedWith(listenerType);
+        if (elements.isEmpty()) return false;
+
+        if (generated) {
+            for (Element element : elements) {
+                error(element, "@TimeSyncListener classes must all be compiled in the same round, " + REGISTRY_NAME + " has already been generated");
+            }
+            return true;
+        }
+
+        List<Listener> listeners = new ArrayList<>();
+        for (Element element : elements) {
+            Listener listener = parseListener((TypeElement) element, listenerType, timeSyncType);
+            if (listener != null) {
+                listeners.add(listener);
+            }
+        }
+        if (listeners.size() != elements.size()) return true;
+
+        Collections.sort(listeners, new Comparator<Listener>() {
+            @Override
+            public int compare(Listener lhs, Listener rhs) {
+                return lhs.name.compareTo(rhs.name);
+            }
+        });
+
+        String packageName = findPackage(listeners);
+        if (packageName == null) {
+            error(listeners.get(0).element, "@TimeSyncListener classes don't share a package, set the package for " + REGISTRY_NAME + " with -A" + OPTION_PACKAGE + "=[PACKAGE]");
+            return true;
+        }
+
+        try {
+            writeRegistry(packageName, listeners);
+        } catch (IOException e) {
+            error(listeners.get(0).element, "Unable to write " + REGISTRY_NAME + ": " + e.getMessage());
+        }
+        generated = true;
+        return true;
+    }
+
+    private Listener parseListener(TypeElement element, TypeElement listenerType, TypeElement timeSyncType) {
+        if (element.getKind() != ElementKind.CLASS || element.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(element, "@TimeSyncListener must be on a concrete class");
+            return null;
+        }
+        if (!processingEnv.getTypeUtils().isSubtype(element.asType(), timeSyncType.asType())) {
+            error(element, "@TimeSyncListener class must extend " + TIME_SYNC);
+            return null;
+        }
+        if (!element.getModifiers().contains(Modifier.PUBLIC)
+                || (element.getNestingKind() == NestingKind.MEMBER && !element.getModifiers().contains(Modifier.STATIC))
+                || (element.getNestingKind() != NestingKind.TOP_LEVEL && element.getNestingKind() != NestingKind.MEMBER)) {
+            error(element, "@TimeSyncListener class must be public, and static if it is nested");
+            return null;
+        }
+        if (!hasPublicNoArgConstructor(element)) {
+            error(element, "@TimeSyncListener class must have a public no-arg constructor");
+            return null;
+        }
+
+        Listener listener = new Listener(element, processingEnv.getElementUtils().getBinaryName(element).toString());
+
+        AnnotationMirror mirror = getAnnotationMirror(element, listenerType);
+        // Only explicitly set values are returned, so defaults are left to the library.
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+            String key = entry.getKey().getSimpleName().toString();
+            AnnotationValue value = entry.getValue();
+            try {
+                switch (key) {
+                    case "enabled":
+                        listener.defaults.add("TimeSync.Edit.enable(" + value.getValue() + ")");
+                        break;
+                    case "every":
+                        listener.defaults.add("TimeSync.Edit.every(" + ParseUtil.parseUnitTimeSpan((String) value.getValue()) + "L)");
+                        break;
+                    case "range":
+                        listener.defaults.add("TimeSync.Edit.range(" + ParseUtil.parseUnitTimeSpan((String) value.getValue()) + "L)");
+                        break;
+                    case "backoff":
+                        listener.defaults.add("TimeSync.Edit.backoff(" + BACKOFF_POLICY + "." + ParseUtil.parseBackoff((String) value.getValue()).name() + ")");
+                        break;
+                    case "maxAttempts":
+                        listener.defaults.add("TimeSync.Edit.maxAttempts(" + ParseUtil.parseMaxAttempts(String.valueOf(value.getValue())) + ")");
+                        break;
+                    case "timeout":
+                        listener.defaults.add("TimeSync.Edit.timeout(" + ParseUtil.parseUnitTimeSpan((String) value.getValue()) + "L)");
+                        break;
+                    case "requiresNetwork":
+                        listener.defaults.add("TimeSync.Edit.requiresNetwork(" + value.getValue() + ")");
+                        break;
+                    case "requiresUnmetered":
+                        listener.defaults.add("TimeSync.Edit.requiresUnmetered(" + value.getValue() + ")");
+                        break;
+                    case "requiresCharging":
+                        listener.defaults.add("TimeSync.Edit.requiresCharging(" + value.getValue() + ")");
+                        break;
+                    case "minBattery":
+                        listener.defaults.add("TimeSync.Edit.minBattery(" + ParseUtil.parseMinBattery(String.valueOf(value.getValue())) + ")");
+                        break;
+                    case "dependsOn":
+                        listener.defaults.add("TimeSync.Edit.dependsOn(" + parseDependsOn(value) + ")");
+                        break;
+                    case "group": {
+                        TypeElement group = (TypeElement) processingEnv.getTypeUtils().asElement((TypeMirror) value.getValue());
+                        // The default means no group.
+                        if (group.getQualifiedName().contentEquals(TIME_SYNC_GROUP)) break;
+                        if (!isCreatable(group)) {
+                            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Invalid group: " + group
+                                    + " must be a public concrete class, static if it is nested, with a public no-arg constructor", element, mirror, value);
+                            return null;
+                        }
+                        listener.group = group;
+                        listener.defaults.add("TimeSync.Edit.group(\"" + processingEnv.getElementUtils().getBinaryName(group) + "\")");
+                        break;
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Invalid " + key + ": " + e.getMessage(), element, mirror, value);
+                return null;
+            }
+        }
+        return listener;
+    }
+
+    /**
+     * Returns the binary names of the classes in the annotation value, as string literals separated
+     * by commas. Binary names are used since they are what {@code TimeSync.getName()} returns.
+     */
+    private String parseDependsOn(AnnotationValue value) {
+        StringBuilder names = new StringBuilder();
+        for (Object item : (List<?>) value.getValue()) {
+            TypeMirror type = (TypeMirror) ((AnnotationValue) item).getValue();
+            TypeElement element = (TypeElement) processingEnv.getTypeUtils().asElement(type);
+            if (names.length() > 0) names.append(", ");
+            names.append('"').append(processingEnv.getElementUtils().getBinaryName(element)).append('"');
+        }
+        // A call without arguments would be ambiguous.
+        return names.length() == 0 ? "new String[0]" : names.toString();
+    }
+
+    private static boolean isCreatable(TypeElement element) {
+        return element.getKind() == ElementKind.CLASS
+                && !element.getModifiers().contains(Modifier.ABSTRACT)
+                && element.getModifiers().contains(Modifier.PUBLIC)
+                && (element.getNestingKind() == NestingKind.TOP_LEVEL
+                || (element.getNestingKind() == NestingKind.MEMBER && element.getModifiers().contains(Modifier.STATIC)))
+                && hasPublicNoArgConstructor(element);
+    }
+
+    private static boolean hasPublicNoArgConstructor(TypeElement element) {
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(element.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static AnnotationMirror getAnnotationMirror(Element element, TypeElement annotationType) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (mirror.getAnnotationType().asElement().equals(annotationType)) {
+                return mirror;
+            }
+        }
+        throw new IllegalStateException("Element {" + element + "} is not annotated with " + annotationType);
+    }
+
+    private String findPackage(List<Listener> listeners) {
+        String option = processingEnv.getOptions().get(OPTION_PACKAGE);
+        if (option != null) {
+            return option;
+        }
+
+        String[] common = null;
+        int commonLength = 0;
+        for (Listener listener : listeners) {
+            String[] parts = processingEnv.getElementUtils().getPackageOf(listener.element).getQualifiedName().toString().split("\\.");
+            if (common == null) {
+                common = parts;
+                commonLength = parts.length;
+            } else {
+                int i = 0;
+                while (i < commonLength && i < parts.length && common[i].equals(parts[i])) i++;
+                commonLength = i;
+            }
+        }
+        if (common == null || commonLength == 0 || common[0].isEmpty()) {
+            return null;
+        }
+
+        StringBuilder packageName = new StringBuilder(common[0]);
+        for (int i = 1; i < commonLength; i++) {
+            packageName.append('.').append(common[i]);
+        }
+        return packageName.toString();
+    }
+
+    private void writeRegistry(String packageName, List<Listener> listeners) throws IOException {
+        Element[] originatingElements = new Element[listeners.size()];
+        for (int i = 0; i < listeners.size(); i++) {
+            originatingElements[i] = listeners.get(i).element;
+        }
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(packageName + "." + REGISTRY_NAME, originatingElements);
+        try (PrintWriter out = new PrintWriter(file.openWriter())) {
+            out.println("package " + packageName + ";");
+            out.println();
+            out.println("import " + TIME_SYNC + ";");
+            out.println("import me.tatarka.timesync.lib.TimeSyncRegistry;");
+            out.println();
+            out.println("/**");
+            out.println(" * Generated by " + TimeSyncProcessor.class.getName() + ", do not edit.");
+            out.println(" */");
+            out.println("public final class " + REGISTRY_NAME + " extends TimeSyncRegistry {");
+            out.println("    public " + REGISTRY_NAME + "() {");
+            // Sorted, so that the output doesn't depend on the order the compiler finds them in.
+            Map<String, TypeElement> groups = new TreeMap<>();
+            for (Listener listener : listeners) {
+                if (listener.group != null) {
+                    groups.put(processingEnv.getElementUtils().getBinaryName(listener.group).toString(), listener.group);
+                }
+            }
+            for (Map.Entry<String, TypeElement> group : groups.entrySet()) {
+                out.println("        addGroup(\"" + group.getKey() + "\", new GroupFactory() {");
+                out.println("            @Override");
+                out.println("            public me.tatarka.timesync.lib.TimeSyncGroup create() {");
+                out.println("                return new " + group.getValue().getQualifiedName() + "();");
+                out.println("            }");
+                out.println("        });");
+            }
+            for (Listener listener : listeners) {
+                String className = listener.element.getQualifiedName().toString();
+                out.println("        add(\"" + listener.name + "\", new Factory() {");
+                out.println("            @Override");
+                out.println("            public TimeSync create() {");
+                out.println("                return new " + className + "();");
+                out.println("            }");
+                out.print("        }");
+                for (String edit : listener.defaults) {
+                    out.print(", " + edit);
+                }
+                out.println(");");
+            }
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private static final class Listener {
+        final TypeElement element;
+        final String name;
+        final List<String> defaults = new ArrayList<>();
+        // Null unless it's in a group.
+        TypeElement group;
+
+        Listener(TypeElement element, String name) {
+            this.element = element;
+            this.name = name;
+        }
+    }
+}
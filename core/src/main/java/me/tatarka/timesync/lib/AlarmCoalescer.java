@@ -0,0 +1,93 @@
+package me.tatarka.timesync.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static me.tatarka.timesync.lib.MathUtil.randomInRange;
+
+/**
+ * Groups listeners so that those due at around the same time share a single alarm. Each listener
+ * has a window {@code [start, end]} in which it is allowed to sync, usually its next event and the
+ * next event plus its range.
+ */
+class AlarmCoalescer {
+    private final Map<String, Window> windows = new HashMap<>();
+
+    /**
+     * Sets the window in which the given listener should sync, replacing any previous one.
+     *
+     * @param name  the name of the listener
+     * @param start the earliest time the listener may sync
+     * @param end   the latest time the listener may sync
+     */
+    void put(String name, long start, long end) {
+        if (end < start) {
+            throw new IllegalArgumentException("end must not be before start !(" + end + ">=" + start + ")");
+        }
+        windows.put(name, new Window(start, end));
+    }
+
+    void remove(String name) {
+        windows.remove(name);
+    }
+
+    boolean isEmpty() {
+        return windows.isEmpty();
+    }
+
+    /**
+     * Finds the next batch of listeners to sync. The listener with the earliest ending window must
+     * be synced before that window ends, so the batch time is picked in the span where the most
+     * windows overlap while still covering that listener. This is the span from the latest start
+     * to the earliest end of all windows that start before the earliest end. Within that span, the
+     * time is offset by the seed so that devices don't all sync at the same instant.
+     *
+     * @param seed the seed used to pick a time within the overlapping span
+     * @return the next batch, or null if there are no windows
+     */
+    Batch next(long seed) {
+        if (windows.isEmpty()) return null;
+
+        long earliestEnd = Long.MAX_VALUE;
+        for (Window window : windows.values()) {
+            if (window.end < earliestEnd) earliestEnd = window.end;
+        }
+
+        long latestStart = Long.MIN_VALUE;
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, Window> entry : windows.entrySet()) {
+            Window window = entry.getValue();
+            if (window.start <= earliestEnd) {
+                names.add(entry.getKey());
+                if (window.start > latestStart) latestStart = window.start;
+            }
+        }
+        Collections.sort(names);
+
+        long time = latestStart + randomInRange(seed, 0, earliestEnd - latestStart);
+        return new Batch(time, names);
+    }
+
+    static final class Batch {
+        final long time;
+        final List<String> names;
+
+        Batch(long time, List<String> names) {
+            this.time = time;
+            this.names = names;
+        }
+    }
+
+    private static final class Window {
+        final long start;
+        final long end;
+
+        Window(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package me.tatarka.timesync.lib;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the {@code PendingIntent} of each listener's alarm. Its extras never change, so it is only
+ * created the first time and then reused for every alarm, and canceling an alarm doesn't have to
+ * create it again. The {@code PendingIntent} type is a parameter so that this can be used without
+ * Android.
+ *
+ * <p>Not thread safe.</p>
+ *
+ * @param <T> the type of the {@code PendingIntent}
+ */
+final class AlarmIntentCache<T> {
+    /**
+     * Creates the {@code PendingIntent} for a listener.
+     */
+    interface Factory<T> {
+        T create(String name);
+    }
+
+    private final Map<String, T> intents = new HashMap<>();
+
+    /**
+     * Returns the {@code PendingIntent} of the given listener's alarm, creating it with the factory
+     * if this is the first time it's needed.
+     */
+    T get(String name, Factory<T> factory) {
+        T intent = intents.get(name);
+        if (intent == null) {
+            intent = factory.create(name);
+            intents.put(name, intent);
+        }
+        return intent;
+    }
+}
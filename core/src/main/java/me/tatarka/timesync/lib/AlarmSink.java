@@ -0,0 +1,40 @@
+package me.tatarka.timesync.lib;
+
+import java.util.List;
+
+/**
+ * Sets the alarms the {@link Scheduler} decides on. When one fires, the host syncs the listeners
+ * it was for and reports the result back to the scheduler.
+ */
+public interface AlarmSink {
+    /**
+     * Sets the alarm of the given listener, replacing any it already has. Listeners in a group
+     * share a single alarm, which is set with the name of the group instead. When it fires, sync
+     * the listeners returned by {@link Scheduler#onGroupFired(String)}.
+     *
+     * @param name the name of the listener or group
+     * @param time when the alarm should fire, in unix time milliseconds
+     */
+    void set(String name, long time);
+
+    /**
+     * Cancels the alarm of the given listener or group, if it has one.
+     *
+     * @param name the name of the listener or group
+     */
+    void cancel(String name);
+
+    /**
+     * Sets the single alarm that is shared by all listeners when alarms are coalesced, replacing
+     * the previous one.
+     *
+     * @param time  when the alarm should fire, in unix time milliseconds
+     * @param names the listeners to sync when it fires
+     */
+    void setBatch(long time, List<String> names);
+
+    /**
+     * Cancels the shared alarm, if there is one.
+     */
+    void cancelBatch();
+}
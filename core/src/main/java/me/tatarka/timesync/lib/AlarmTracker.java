@@ -0,0 +1,124 @@
+package me.tatarka.timesync.lib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the alarm set for each listener, so that setting an alarm that is already set is
+ * free. Changes are collected with {@link #set(String, long)} and {@link #cancel(String)}, and only
+ * the ones that end up different than what is already set are passed on on {@link #apply(int,
+ * Alarms)}. A listener that was never applied may or may not have an alarm, so it is always passed
+ * on.
+ *
+ * <p>Nothing is allocated once every listener has been seen. Not thread safe.</p>
+ */
+final class AlarmTracker {
+    /**
+     * Where alarms are actually set.
+     */
+    interface Alarms {
+        void set(String name, int type, long time);
+
+        void cancel(String name);
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final List<Entry> changed = new ArrayList<>();
+
+    /**
+     * Sets the listener's alarm for the given time on the next {@link #apply(int, Alarms)}.
+     */
+    void set(String name, long time) {
+        Entry entry = change(name);
+        entry.wantSet = true;
+        entry.wantTime = time;
+    }
+
+    /**
+     * Cancels the listener's alarm on the next {@link #apply(int, Alarms)}.
+     */
+    void cancel(String name) {
+        Entry entry = change(name);
+        entry.wantSet = false;
+        entry.wantTime = 0;
+    }
+
+    /**
+     * Records that the listener's alarm has fired, so it is no longer set.
+     *
+     * @return the time the alarm was set for, or 0 if it isn't known, for example because the
+     * process was restarted since
+     */
+    long onFired(String name) {
+        Entry entry = entry(name);
+        long time = entry.known && entry.isSet ? entry.time : 0;
+        entry.known = true;
+        entry.isSet = false;
+        return time;
+    }
+
+    /**
+     * Passes on the changes since the last call.
+     *
+     * @param type   the type to set alarms with, if an alarm has a different type it is set again
+     * @param alarms where to set them
+     */
+    void apply(int type, Alarms alarms) {
+        for (int i = 0; i < changed.size(); i++) {
+            Entry entry = changed.get(i);
+            entry.changed = false;
+            if (entry.wantSet) {
+                if (!entry.known || !entry.isSet || entry.type != type || entry.time != entry.wantTime) {
+                    alarms.set(entry.name, type, entry.wantTime);
+                }
+                entry.isSet = true;
+                entry.type = type;
+                entry.time = entry.wantTime;
+            } else {
+                if (!entry.known || entry.isSet) {
+                    alarms.cancel(entry.name);
+                }
+                entry.isSet = false;
+            }
+            entry.known = true;
+        }
+        changed.clear();
+    }
+
+    private Entry change(String name) {
+        Entry entry = entry(name);
+        if (!entry.changed) {
+            entry.changed = true;
+            changed.add(entry);
+        }
+        return entry;
+    }
+
+    private Entry entry(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            entry = new Entry(name);
+            entries.put(name, entry);
+        }
+        return entry;
+    }
+
+    private static final class Entry {
+        final String name;
+        // If the alarm has been applied, otherwise it is unknown if one is set.
+        boolean known;
+        boolean isSet;
+        int type;
+        long time;
+        // If there is a change waiting to be applied, and what it is.
+        boolean changed;
+        boolean wantSet;
+        long wantTime;
+
+        Entry(String name) {
+            this.name = name;
+        }
+    }
+}
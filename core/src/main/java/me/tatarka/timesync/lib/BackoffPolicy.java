@@ -0,0 +1,106 @@
+package me.tatarka.timesync.lib;
+
+import static me.tatarka.timesync.lib.MathUtil.randomInRange;
+
+/**
+ * How long to wait before retrying a sync that failed. Each retry waits at most the longer of the
+ * sync interval and 5 seconds.
+ *
+ * <p>With {@link #EXPONENTIAL}, devices that failed at the same time also retry at the same time,
+ * so a server that is recovering from an outage gets all of their retries at once. The jittered
+ * policies pick a new random delay for every retry, which spreads them out.</p>
+ *
+ * @see <a href="https://aws.amazon.com/blogs/architecture/exponential-backoff-and-jitter/">Exponential
+ * Backoff And Jitter</a>
+ */
+public enum BackoffPolicy {
+    /**
+     * Doubles the delay after every failure. This is the default.
+     */
+    EXPONENTIAL(0),
+
+    /**
+     * Waits a random delay between 0 and what {@link #EXPONENTIAL} would have waited.
+     */
+    FULL_JITTER(1),
+
+    /**
+     * Waits a random delay between the first delay and 3 times the previous one. Unlike {@link
+     * #FULL_JITTER}, the delay doesn't only depend on how many times the sync failed, so retries
+     * of different devices drift further apart with each attempt.
+     */
+    DECORRELATED_JITTER(2);
+
+    /**
+     * The delay before the first retry.
+     */
+    static final long BASE_DELAY = 500;
+    /**
+     * The longest delay is the sync interval, but never less than this.
+     */
+    static final long MIN_MAX_DELAY = 5000;
+
+    // Persisted, so unlike the ordinal this must never change.
+    final int id;
+
+    BackoffPolicy(int id) {
+        this.id = id;
+    }
+
+    static BackoffPolicy fromId(int id) {
+        for (BackoffPolicy policy : values()) {
+            if (policy.id == id) return policy;
+        }
+        throw new IllegalArgumentException("Unknown backoff policy id: " + id);
+    }
+
+    /**
+     * Returns how long to wait before the next retry of a sync with the given interval.
+     *
+     * @param attempt   how many times in a row the sync has failed, including this time
+     * @param lastDelay the delay before the previous retry, or 0 if there was none
+     * @param every     how often the sync happens normally
+     * @param random    a uniformly distributed random value, this must be drawn anew for every
+     *                  retry
+     * @return the delay
+     */
+    long nextDelay(int attempt, long lastDelay, long every, long random) {
+        return nextDelay(attempt, lastDelay, BASE_DELAY, Math.max(every, MIN_MAX_DELAY), random);
+    }
+
+    /**
+     * Returns how long to wait before the next retry.
+     *
+     * @param attempt   how many times in a row the sync has failed, including this time
+     * @param lastDelay the delay before the previous retry, or 0 if there was none
+     * @param baseDelay the delay before the first retry
+     * @param maxDelay  the longest delay
+     * @param random    a uniformly distributed random value, this must be drawn anew for every
+     *                  retry
+     * @return the delay
+     */
+    long nextDelay(int attempt, long lastDelay, long baseDelay, long maxDelay, long random) {
+        switch (this) {
+            case FULL_JITTER:
+                return randomInRange(random, 0, exponentialDelay(attempt, baseDelay, maxDelay));
+            case DECORRELATED_JITTER: {
+                long upper = lastDelay == 0 ? baseDelay * 3 : lastDelay * 3;
+                if (upper > maxDelay || upper < 0) upper = maxDelay;
+                if (upper < baseDelay) return upper;
+                return randomInRange(random, baseDelay, upper);
+            }
+            default: {
+                long delay = lastDelay == 0 ? baseDelay : lastDelay * 2;
+                return delay > maxDelay || delay < 0 ? maxDelay : delay;
+            }
+        }
+    }
+
+    private static long exponentialDelay(int attempt, long baseDelay, long maxDelay) {
+        long delay = baseDelay;
+        for (int i = 1; i < attempt && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        return delay < maxDelay ? delay : maxDelay;
+    }
+}
@@ -0,0 +1,34 @@
+package me.tatarka.timesync.lib;
+
+import java.util.TimeZone;
+
+/**
+ * Where the {@link Scheduler} gets the current time from. Replace it to run the scheduler on
+ * simulated time.
+ */
+public interface Clock {
+    /**
+     * The system clock in the default time zone.
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public TimeZone getTimeZone() {
+            return TimeZone.getDefault();
+        }
+    };
+
+    /**
+     * Returns the current time in unix time milliseconds.
+     */
+    long currentTimeMillis();
+
+    /**
+     * Returns the time zone syncs are lined up in.
+     */
+    TimeZone getTimeZone();
+}
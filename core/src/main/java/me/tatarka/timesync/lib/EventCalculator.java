@@ -0,0 +1,113 @@
+package me.tatarka.timesync.lib;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import static me.tatarka.timesync.lib.MathUtil.divCeil;
+
+class EventCalculator {
+    // The last day midnight was calculated for. It's immutable and replaced as a whole so that it
+    // can be read without locking.
+    private static volatile Day sDay;
+
+    /**
+     * Calculate when to fire the next event. This should happen at the next timestamp which is a
+     * multiple of the given interval since midnight in the current timezone. Both the arguments and
+     * the result are in unix time milliseconds (equivalent to {@link System#currentTimeMillis()}).
+     *
+     * @param currentTime the time to start from, the result will be the next event after this time
+     * @param interval    the interval
+     * @return the next event time.
+     */
+    public static long getNextEvent(long currentTime, long interval) {
+        return getNextEvent(currentTime, interval, TimeZone.getDefault());
+    }
+
+    /**
+     * Calculate when to fire the next event in the given timezone. {@link TimeZone#getDefault()}
+     * returns a new copy every time, so callers that calculate many events at once should look it
+     * up once and pass it in. As long as the time stays within the same day this does not
+     * allocate.
+     *
+     * @param currentTime the time to start from, the result will be the next event after this time
+     * @param interval    the interval
+     * @param timeZone    the timezone midnight is calculated in
+     * @return the next event time.
+     * @see #getNextEvent(long, long)
+     */
+    public static long getNextEvent(long currentTime, long interval, TimeZone timeZone) {
+        if (interval == 0) return currentTime;
+
+        long startTime = getPreviousMidnight(currentTime, timeZone);
+        long span = currentTime - startTime;
+
+        long result;
+        if (span == 0) {
+            // It's midnight!
+            result = startTime + interval;
+        } else {
+            result = startTime + divCeil(span, interval) * interval;
+        }
+        return result;
+    }
+
+    private static long getPreviousMidnight(long currentTime, TimeZone timeZone) {
+        Day day = sDay;
+        if (day == null || !day.contains(currentTime, timeZone)) {
+            day = Day.of(currentTime, timeZone);
+            sDay = day;
+        }
+        return day.start;
+    }
+
+    /**
+     * A single day in a timezone, identified by its local date. The calendar only looks at the
+     * local date when finding midnight, so every time on the same date has the same previous
+     * midnight, even if the offset changes during the day. The local date has to be found with the
+     * offset at each time though, since right before a large enough fall back transition the date
+     * has already changed while the new midnight is still in the future.
+     */
+    private static final class Day {
+        private static final long DAY = 24 * 60 * 60 * 1000;
+
+        final String timeZoneId;
+        final int rawOffset;
+        final long localDate;
+        final long start;
+
+        private Day(String timeZoneId, int rawOffset, long localDate, long start) {
+            this.timeZoneId = timeZoneId;
+            this.rawOffset = rawOffset;
+            this.localDate = localDate;
+            this.start = start;
+        }
+
+        static Day of(long currentTime, TimeZone timeZone) {
+            Calendar date = new GregorianCalendar(timeZone);
+            date.setTimeInMillis(currentTime);
+            setMidnight(date);
+            return new Day(timeZone.getID(), timeZone.getRawOffset(), localDate(currentTime, timeZone), date.getTimeInMillis());
+        }
+
+        boolean contains(long time, TimeZone timeZone) {
+            return localDate == localDate(time, timeZone)
+                    && rawOffset == timeZone.getRawOffset()
+                    && timeZoneId.equals(timeZone.getID());
+        }
+
+        private static long localDate(long time, TimeZone timeZone) {
+            long localTime = time + timeZone.getOffset(time);
+            // Floor division, so that times before 1970 land on the right date.
+            long date = localTime / DAY;
+            return localTime % DAY < 0 ? date - 1 : date;
+        }
+
+        private static void setMidnight(Calendar date) {
+            date.set(Calendar.HOUR_OF_DAY, 0);
+            date.set(Calendar.MINUTE, 0);
+            date.set(Calendar.SECOND, 0);
+            date.set(Calendar.MILLISECOND, 0);
+        }
+    }
+}
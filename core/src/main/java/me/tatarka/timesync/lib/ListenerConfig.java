@@ -0,0 +1,27 @@
+package me.tatarka.timesync.lib;
+
+/**
+ * The configuration of a listener that the {@link Scheduler} schedules it by.
+ */
+public interface ListenerConfig {
+    boolean enabled();
+
+    long every();
+
+    long range();
+
+    BackoffPolicy backoff();
+
+    int maxAttempts();
+
+    /**
+     * Returns if the listener can only sync with a network connection.
+     */
+    boolean requiresNetwork();
+
+    /**
+     * Returns the name of the group the listener syncs with, or null if it has none. Listeners in
+     * the same group share a single alarm, and are offset within their range by the same amount.
+     */
+    String group();
+}
@@ -53,4 +53,29 @@ class MathUtil {
 
         return val + lower;
     }
+
+    /**
+     * Scrambles the bits of the given value so that values which only differ slightly, like
+     * string hash codes, give uncorrelated results. This is the finalizer of SplitMix64.
+     *
+     * @param value the value
+     * @return the scrambled value
+     */
+    static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * Derives a seed for a single listener from the seed of the device, so that listeners on the
+     * same device don't all get the same offset.
+     *
+     * @param seed the seed of the device
+     * @param name the name of the listener
+     * @return the seed of the listener
+     */
+    static long listenerSeed(long seed, String name) {
+        return mix(seed ^ mix(name.hashCode()));
+    }
 }
@@ -0,0 +1,113 @@
+package me.tatarka.timesync.lib;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+class ParseUtil {
+    private static final Pattern timeSpanRegex = Pattern.compile("(\\d+) +(second|minute|hour|day|week)s?");
+
+    /**
+     * Parses a boolean, but unlike {@link Boolean#parseBoolean(String)} anything other than
+     * "true" or "false" is an error.
+     *
+     * @param input the string to parse
+     * @return the boolean
+     * @throws BooleanFormatException if the input is not "true" or "false"
+     */
+    static boolean validatingParseBoolean(String input) throws BooleanFormatException {
+        switch (input) {
+            case "true":
+                return true;
+            case "false":
+                return false;
+            default:
+                throw new BooleanFormatException("For input string: " + input);
+        }
+    }
+
+    /**
+     * Parses a time span with an optional unit, for example "10 minutes", into milliseconds. If no
+     * unit is given the value is assumed to already be in milliseconds.
+     *
+     * @param input the string to parse
+     * @return the time span in milliseconds
+     * @throws IllegalArgumentException if the input is not a valid time span
+     */
+    static long parseUnitTimeSpan(String input) throws IllegalArgumentException {
+        if (input == null) {
+            throw new IllegalArgumentException("For input string: " + input);
+        }
+
+        Matcher matcher = timeSpanRegex.matcher(input);
+        if (matcher.matches()) {
+            String timeSpanString = matcher.group(1);
+            long timeUnit = Long.parseLong(timeSpanString);
+            String unitString = matcher.group(2);
+
+            switch (unitString) {
+                case "second": return TimeUnit.SECONDS.toMillis(timeUnit);
+                case "minute": return TimeUnit.MINUTES.toMillis(timeUnit);
+                case "hour": return TimeUnit.HOURS.toMillis(timeUnit);
+                case "day": return TimeUnit.DAYS.toMillis(timeUnit);
+                case "week": return TimeUnit.DAYS.toMillis(timeUnit * 7);
+                default:throw new IllegalArgumentException("Unknown unit: " + unitString);
+            }
+        } else {
+            // May have no units, just parse as milliseconds
+            return Long.parseLong(input);
+        }
+    }
+
+    /**
+     * Parses a backoff policy, one of "exponential", "full_jitter" or "decorrelated_jitter".
+     *
+     * @param input the string to parse
+     * @return the backoff policy
+     * @throws IllegalArgumentException if the input is not a backoff policy
+     */
+    static BackoffPolicy parseBackoff(String input) throws IllegalArgumentException {
+        switch (input) {
+            case "exponential":
+                return BackoffPolicy.EXPONENTIAL;
+            case "full_jitter":
+                return BackoffPolicy.FULL_JITTER;
+            case "decorrelated_jitter":
+                return BackoffPolicy.DECORRELATED_JITTER;
+            default:
+                throw new IllegalArgumentException("backoff must be \"exponential\", \"full_jitter\" or \"decorrelated_jitter\", was: " + input);
+        }
+    }
+
+    /**
+     * Parses the maximum number of attempts for a sync, 0 meaning there is no maximum.
+     *
+     * @param input the string to parse
+     * @return the maximum number of attempts
+     * @throws IllegalArgumentException if the input is not a non-negative integer
+     */
+    static int parseMaxAttempts(String input) throws IllegalArgumentException {
+        int attempts = Integer.parseInt(input);
+        if (attempts < 0) {
+            throw new IllegalArgumentException("maxAttempts must not be negative, was: " + input);
+        }
+        return attempts;
+    }
+
+    /**
+     * Parses the minimum battery level needed to sync, as a percentage with or without a trailing
+     * "%".
+     *
+     * @param input the string to parse
+     * @return the battery level, from 0 to 100
+     * @throws IllegalArgumentException if the input is not a percentage
+     */
+    static int parseMinBattery(String input) throws IllegalArgumentException {
+        String number = input.endsWith("%") ? input.substring(0, input.length() - 1) : input;
+        int level = Integer.parseInt(number.trim());
+        if (level < 0 || level > 100) {
+            throw new IllegalArgumentException("minBattery must be between 0 and 100, was: " + input);
+        }
+        return level;
+    }
+}
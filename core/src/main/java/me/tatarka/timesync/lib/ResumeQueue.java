@@ -0,0 +1,83 @@
+package me.tatarka.timesync.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Orders the listeners to sync once the network comes back, or their constraints are met. Each
+ * listener only becomes ready after its own delay so that they are spread out over time, and of
+ * those that are ready the most overdue one goes first.
+ */
+class ResumeQueue {
+    // Sorted from most to least overdue.
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Adds a listener to the queue.
+     *
+     * @param name      the name of the listener
+     * @param overdue   how long ago the listener should have synced
+     * @param readyTime the earliest time the listener may sync
+     */
+    void add(String name, long overdue, long readyTime) {
+        Entry entry = new Entry(name, overdue, readyTime);
+        int i = 0;
+        while (i < entries.size() && entries.get(i).overdue >= overdue) i++;
+        entries.add(i, entry);
+    }
+
+    /**
+     * Removes and returns the most overdue listener that is ready at the given time.
+     *
+     * @param currentTime the current time
+     * @return the name of the listener, or null if none are ready
+     */
+    String poll(long currentTime) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).readyTime <= currentTime) {
+                return entries.remove(i).name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the given listener from the queue, if it's in it.
+     */
+    void remove(String name) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).name.equals(name)) {
+                entries.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the earliest time a listener in the queue is ready, or {@link Long#MAX_VALUE} if the
+     * queue is empty.
+     */
+    long nextReadyTime() {
+        long time = Long.MAX_VALUE;
+        for (Entry entry : entries) {
+            if (entry.readyTime < time) time = entry.readyTime;
+        }
+        return time;
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    private static final class Entry {
+        final String name;
+        final long overdue;
+        final long readyTime;
+
+        Entry(String name, long overdue, long readyTime) {
+            this.name = name;
+            this.overdue = overdue;
+            this.readyTime = readyTime;
+        }
+    }
+}
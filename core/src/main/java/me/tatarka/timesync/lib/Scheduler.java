@@ -0,0 +1,654 @@
+package me.tatarka.timesync.lib;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static me.tatarka.timesync.lib.MathUtil.listenerSeed;
+import static me.tatarka.timesync.lib.MathUtil.randomInRange;
+
+/**
+ * Decides when each listener syncs. The host tells the scheduler what happens, a sync succeeding
+ * or failing, the network going away and so on, and the scheduler sets alarms through an {@link
+ * AlarmSink} in response. It doesn't sync anything itself, and has no dependencies on android, so
+ * that it can run anywhere with a {@link Clock} of its own.
+ *
+ * <p>Each listener is in one of the states of {@link State}. The next time each scheduled listener
+ * syncs is also kept in a priority queue, so that a host without alarms of its own can wait for
+ * {@link #nextFireTime()} and sync {@link #pollDue()}.</p>
+ *
+ * <p>Not thread safe, all calls should happen on the same thread. Call {@link #commit()} after
+ * handling each event.</p>
+ */
+public final class Scheduler {
+    // This was the seed of every install, since it was seeded with the name of the android id
+    // setting instead of its value.
+    private static final long LEGACY_SEED = new Random("android_id".hashCode()).nextLong();
+
+    public enum State {
+        /**
+         * Not scheduled, because it is disabled or has no interval.
+         */
+        IDLE,
+        /**
+         * Scheduled to sync normally.
+         */
+        SCHEDULED,
+        /**
+         * The last sync failed, and it is scheduled to be retried.
+         */
+        RETRYING,
+        /**
+         * A sync was missed because there was no network.
+         */
+        WAITING_FOR_NETWORK,
+        /**
+         * Waiting to catch up on a missed sync now that the network is back, or the listener's
+         * constraints are met.
+         */
+        RESUMING,
+        /**
+         * A sync was missed because the listener's other constraints weren't met. It is scheduled
+         * again for its next regular sync, but may be resumed sooner.
+         */
+        DEFERRED
+    }
+
+    private final Clock clock;
+    private final AlarmSink alarms;
+    private final StateStore store;
+    private final Map<String, ? extends ListenerConfig> listeners;
+    private final Map<String, State> states = new HashMap<>();
+    // When each deferred listener was deferred, so that the most overdue can be resumed first.
+    private final Map<String, Long> deferredTimes = new HashMap<>();
+    // The alarm time of each listener in a group, and the group it was set for. Each group has a
+    // single alarm for the earliest of its listeners, named after the group.
+    private final Map<String, Long> groupAlarmTimes = new HashMap<>();
+    private final Map<String, String> alarmGroups = new HashMap<>();
+    // Null if each listener gets its own alarm.
+    private final AlarmCoalescer coalescer;
+    private boolean batchChanged;
+    // Null unless resuming after the network came back, or listeners' constraints were met.
+    private ResumeQueue resumeQueue;
+    private final PriorityQueue<Pending> pending = new PriorityQueue<>();
+    // The latest entry in the queue for each listener, older ones are skipped.
+    private final Map<String, Pending> latestPending = new HashMap<>();
+    private final long seed;
+    // Drawn from for every retry, unlike the seed which is fixed per install.
+    private final Random random = new Random();
+
+    /**
+     * Creates a scheduler, picking up any state left in the store.
+     *
+     * @param clock     where to get the current time from
+     * @param alarms    where to set alarms
+     * @param store     where to keep state across restarts
+     * @param listeners the configuration of every listener, by name
+     * @param coalesce  true to share a single alarm between listeners that are due at around the
+     *                  same time
+     */
+    public Scheduler(Clock clock, AlarmSink alarms, StateStore store, Map<String, ? extends ListenerConfig> listeners, boolean coalesce) {
+        this.clock = clock;
+        this.alarms = alarms;
+        this.store = store;
+        this.listeners = new LinkedHashMap<>(listeners);
+        this.coalescer = coalesce ? new AlarmCoalescer() : null;
+        seed = findOrCreateSeed(store);
+
+        for (String name : listeners.keySet()) {
+            long nextSyncTime = store.getNextSyncTime(name);
+            if (nextSyncTime != 0) {
+                states.put(name, store.getFailedAttempts(name) > 0 ? State.RETRYING : State.SCHEDULED);
+                enqueue(name, nextSyncTime);
+            } else {
+                states.put(name, State.IDLE);
+            }
+        }
+    }
+
+    /**
+     * Returns the random seed of this install. Listeners derive their offsets within their range
+     * from it.
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Returns the state of the given listener.
+     */
+    public State getState(String name) {
+        State state = states.get(name);
+        if (state == null) {
+            throw new IllegalArgumentException("Unknown listener: " + name);
+        }
+        return state;
+    }
+
+    /**
+     * Returns if the given listener may sync, both on schedule and when requested explicitly.
+     */
+    public boolean canSync(String name) {
+        return config(name).enabled();
+    }
+
+    public boolean isPowerConnected() {
+        return store.isPowerConnected();
+    }
+
+    /**
+     * Schedules every listener from scratch.
+     */
+    public void start() {
+        removeAll();
+        addAll();
+        deferredTimes.clear();
+    }
+
+    /**
+     * Cancels every listener.
+     */
+    public void stop() {
+        removeAll();
+        resumeQueue = null;
+        deferredTimes.clear();
+    }
+
+    /**
+     * Rebuilds the shared alarm after the host was restarted, since the windows it is made from
+     * are only kept in memory.
+     */
+    public void restoreBatch() {
+        if (coalescer != null) {
+            addAll();
+        }
+    }
+
+    /**
+     * Reschedules the given listener after its configuration changed.
+     */
+    public void update(String name) {
+        remove(name);
+        add(name);
+        deferredTimes.remove(name);
+    }
+
+    /**
+     * Sets the alarm of the given listener again for the same time, if it has one. This is for when
+     * the host sets alarms differently than before, but the listener's schedule hasn't changed.
+     * Does nothing if alarms are coalesced, or if the alarm is in the past since it has most likely
+     * fired already.
+     */
+    public void refreshAlarm(String name) {
+        config(name);
+        Pending entry = latestPending.get(name);
+        if (coalescer == null && entry != null && entry.time > clock.currentTimeMillis()) {
+            setAlarm(name, entry.time);
+        }
+    }
+
+    /**
+     * Reschedules every listener, for example because the alarms need to be set differently now
+     * that the device is charging.
+     *
+     * @param connected if the device is now connected to power
+     */
+    public void onPowerChanged(boolean connected) {
+        store.setPowerConnected(connected);
+        removeAll();
+        addAll();
+        // Deferred listeners are still waiting for their constraints.
+        for (String name : deferredTimes.keySet()) {
+            states.put(name, State.DEFERRED);
+        }
+    }
+
+    /**
+     * Schedules the given listener to sync sometime within its range from now, unless it would have
+     * synced sooner than that anyway.
+     */
+    public void syncInexact(String name) {
+        long range = config(name).range();
+        // A time that has already passed is left over from an alarm that has fired.
+        long currentTime = clock.currentTimeMillis();
+        long nextSyncTime = store.getNextSyncTime(name);
+        if (nextSyncTime > currentTime && nextSyncTime <= getDeadline(name, currentTime, range)) {
+            return;
+        }
+        remove(name);
+        schedule(name, 0, range);
+    }
+
+    /**
+     * Called when the shared alarm fired for the given listeners, before they sync.
+     */
+    public void onBatchFired(List<String> names) {
+        if (coalescer == null) return;
+        for (String name : names) {
+            coalescer.remove(name);
+            unqueueResume(name);
+        }
+        batchChanged = true;
+    }
+
+    /**
+     * Called when the alarm of the given group fired, before its listeners sync. The group's alarm
+     * is then set for the rest of them.
+     *
+     * @return the listeners in the group that are due, in the order they were declared
+     */
+    public List<String> onGroupFired(String group) {
+        long currentTime = clock.currentTimeMillis();
+        List<String> due = new ArrayList<>();
+        for (String name : listeners.keySet()) {
+            if (group.equals(alarmGroups.get(name)) && groupAlarmTimes.get(name) <= currentTime) {
+                alarmGroups.remove(name);
+                groupAlarmTimes.remove(name);
+                unqueueResume(name);
+                due.add(name);
+            }
+        }
+        updateGroupAlarm(group);
+        return due;
+    }
+
+    public void onSyncSucceeded(String name) {
+        deferredTimes.remove(name);
+        store.setLastFailedTimeSpan(name, 0);
+        store.setFailedAttempts(name, 0);
+        add(name);
+    }
+
+    public void onSyncFailed(String name) {
+        deferredTimes.remove(name);
+        ListenerConfig config = config(name);
+        int attempt = store.getFailedAttempts(name) + 1;
+        int maxAttempts = config.maxAttempts();
+        if (maxAttempts > 0 && attempt >= maxAttempts) {
+            // Give up, and wait for the next regularly scheduled sync.
+            store.setLastFailedTimeSpan(name, 0);
+            store.setFailedAttempts(name, 0);
+            add(name);
+            return;
+        }
+
+        BackoffPolicy backoff = config.backoff();
+        long lastRetrySpan = store.getLastFailedTimeSpan(name);
+        long retrySpan = backoff.nextDelay(attempt, lastRetrySpan, config.every(), random.nextLong());
+
+        store.setLastFailedTimeSpan(name, retrySpan);
+        store.setFailedAttempts(name, attempt);
+        if (backoff == BackoffPolicy.EXPONENTIAL) {
+            schedule(name, retrySpan, config.range());
+        } else {
+            // The delay is already random, so it doesn't need to be lined up with other devices or
+            // offset by the range.
+            scheduleAt(name, clock.currentTimeMillis() + retrySpan, 0);
+        }
+        states.put(name, State.RETRYING);
+    }
+
+    /**
+     * Called when a sync couldn't happen because there is no network. The alarm of every listener
+     * that requires a network is canceled until {@link #onNetworkBack()}, but when each was
+     * supposed to sync is kept so that the most overdue can be resumed first. Listeners that don't
+     * require a network are left alone.
+     */
+    public void onNetworkLost() {
+        for (Map.Entry<String, ? extends ListenerConfig> entry : listeners.entrySet()) {
+            if (!entry.getValue().requiresNetwork()) continue;
+            String name = entry.getKey();
+            cancel(name);
+            states.put(name, State.WAITING_FOR_NETWORK);
+            deferredTimes.remove(name);
+            unqueueResume(name);
+        }
+    }
+
+    /**
+     * Called when the network is back. Listeners that require a network and missed a sync are
+     * queued to be resumed with {@link #pollResume()}, each delayed by a random amount within its
+     * range. Each also gets an alarm for that time, in case the host is killed before then. The
+     * rest of those are rescheduled as usual.
+     */
+    public void onNetworkBack() {
+        long currentTime = clock.currentTimeMillis();
+        for (Map.Entry<String, ? extends ListenerConfig> entry : listeners.entrySet()) {
+            String name = entry.getKey();
+            ListenerConfig config = entry.getValue();
+            // Deferred listeners are still scheduled, and wait for their other constraints.
+            if (!config.requiresNetwork() || states.get(name) == State.DEFERRED) continue;
+            if (!config.enabled()) {
+                states.put(name, State.IDLE);
+                continue;
+            }
+            long nextSyncTime = store.getNextSyncTime(name);
+            if (nextSyncTime != 0 && nextSyncTime <= currentTime) {
+                queueResume(name, config, currentTime - nextSyncTime, currentTime);
+            } else {
+                add(name);
+            }
+        }
+    }
+
+    /**
+     * Called when a sync couldn't happen because the listener's constraints, other than requiring
+     * a network, weren't met. It is scheduled for its next regular sync as if it had synced, but
+     * can be resumed sooner with {@link #resume(String)} once they are. Unlike a failure, this
+     * doesn't affect its backoff.
+     */
+    public void defer(String name) {
+        if (states.get(name) != State.DEFERRED) {
+            deferredTimes.put(name, clock.currentTimeMillis());
+        }
+        add(name);
+        states.put(name, State.DEFERRED);
+    }
+
+    /**
+     * Queues a deferred listener to be resumed with {@link #pollResume()} now that its constraints
+     * are met, delayed by a random amount within its range. Does nothing if the listener isn't
+     * deferred.
+     */
+    public void resume(String name) {
+        ListenerConfig config = config(name);
+        if (states.get(name) != State.DEFERRED) return;
+        long currentTime = clock.currentTimeMillis();
+        Long deferredTime = deferredTimes.remove(name);
+        cancel(name);
+        queueResume(name, config, deferredTime == null ? 0 : currentTime - deferredTime, currentTime);
+    }
+
+    /**
+     * Returns if there are listeners waiting to be resumed.
+     */
+    public boolean isResuming() {
+        return resumeQueue != null;
+    }
+
+    /**
+     * Returns the most overdue listener that is ready to be resumed now, or null if there is
+     * none.
+     */
+    public String pollResume() {
+        if (resumeQueue == null) return null;
+        String name = resumeQueue.poll(clock.currentTimeMillis());
+        if (resumeQueue.isEmpty()) {
+            resumeQueue = null;
+        }
+        if (name != null) {
+            // It's syncing now, so it no longer needs the alarm in case the host is killed.
+            cancel(name);
+        }
+        return name;
+    }
+
+    /**
+     * Called when the alarm of the given listener fired, before it syncs. If it was waiting to be
+     * resumed it no longer is, since the alarm was set for when it would have been.
+     */
+    public void onAlarmFired(String name) {
+        config(name);
+        unqueueResume(name);
+    }
+
+    /**
+     * Returns when the next listener is ready to be resumed, or {@link Long#MAX_VALUE} if there are
+     * none.
+     */
+    public long nextResumeTime() {
+        return resumeQueue == null ? Long.MAX_VALUE : resumeQueue.nextReadyTime();
+    }
+
+    /**
+     * Returns the earliest time any listener is scheduled to sync, or {@link Long#MAX_VALUE} if
+     * none are.
+     */
+    public long nextFireTime() {
+        Pending next = peekPending();
+        return next == null ? Long.MAX_VALUE : next.time;
+    }
+
+    /**
+     * Removes and returns every listener that is scheduled to sync by now, earliest first.
+     */
+    public List<String> pollDue() {
+        long currentTime = clock.currentTimeMillis();
+        List<String> names = new ArrayList<>();
+        Pending next;
+        while ((next = peekPending()) != null && next.time <= currentTime) {
+            pending.poll();
+            latestPending.remove(next.name);
+            names.add(next.name);
+        }
+        return names;
+    }
+
+    /**
+     * Applies the changes made while handling an event. This updates the shared alarm and persists
+     * state.
+     */
+    public void commit() {
+        if (batchChanged) {
+            batchChanged = false;
+            AlarmCoalescer.Batch batch = coalescer.next(seed);
+            if (batch == null) {
+                alarms.cancelBatch();
+            } else {
+                alarms.setBatch(batch.time, Collections.unmodifiableList(batch.names));
+            }
+        }
+        store.flush();
+    }
+
+    private void queueResume(String name, ListenerConfig config, long overdue, long currentTime) {
+        long delay = randomInRange(offsetSeed(name), 0, config.range());
+        if (resumeQueue == null) {
+            resumeQueue = new ResumeQueue();
+        } else {
+            resumeQueue.remove(name);
+        }
+        resumeQueue.add(name, overdue, currentTime + delay);
+        states.put(name, State.RESUMING);
+        // The queue is only kept in memory, so the alarm makes sure it still syncs if the host is
+        // killed before then.
+        if (coalescer != null) {
+            coalescer.put(name, currentTime + delay, currentTime + delay);
+            batchChanged = true;
+        } else {
+            setAlarm(name, currentTime + delay);
+        }
+    }
+
+    private void unqueueResume(String name) {
+        if (resumeQueue == null) return;
+        resumeQueue.remove(name);
+        if (resumeQueue.isEmpty()) {
+            resumeQueue = null;
+        }
+    }
+
+    private void addAll() {
+        for (String name : listeners.keySet()) {
+            add(name);
+        }
+    }
+
+    private void add(String name) {
+        ListenerConfig config = config(name);
+        long span = config.every();
+        if (!config.enabled() || span <= 0) {
+            states.put(name, State.IDLE);
+            return;
+        }
+        schedule(name, span, config.range());
+    }
+
+    /**
+     * Schedules a sync for the next event of the given time span, offset by up to the given range.
+     * If alarms are coalesced, this only records the listener's window, the shared alarm is updated
+     * on {@link #commit()}.
+     */
+    private void schedule(String name, long timeSpan, long range) {
+        long exactTime = EventCalculator.getNextEvent(clock.currentTimeMillis(), timeSpan, clock.getTimeZone());
+        scheduleAt(name, exactTime, range);
+    }
+
+    /**
+     * Schedules a sync at the given time, offset by up to the given range.
+     */
+    private void scheduleAt(String name, long exactTime, long range) {
+        long deadline = getDeadline(name, exactTime, range);
+        if (coalescer != null) {
+            coalescer.put(name, exactTime, deadline);
+            batchChanged = true;
+        } else if (deadline > 0) {
+            setAlarm(name, deadline);
+        }
+        store.setNextSyncTime(name, deadline);
+        enqueue(name, deadline);
+        states.put(name, State.SCHEDULED);
+    }
+
+    /**
+     * Returns the latest time a sync scheduled for the given time will happen. This is the alarm
+     * time itself, unless alarms are coalesced in which case it can happen anywhere in the range.
+     */
+    private long getDeadline(String name, long exactTime, long range) {
+        if (coalescer != null) {
+            return exactTime + range;
+        } else {
+            return exactTime + randomInRange(offsetSeed(name), 0, range);
+        }
+    }
+
+    /**
+     * Returns the seed the listener's offset within its range is drawn from. Listeners in the same
+     * group share it, so that the ones with the same configuration sync at the same time.
+     */
+    private long offsetSeed(String name) {
+        String group = config(name).group();
+        return listenerSeed(seed, group != null ? group : name);
+    }
+
+    /**
+     * Sets the alarm of the given listener, or of its group if it has one.
+     */
+    private void setAlarm(String name, long time) {
+        String group = config(name).group();
+        if (group == null) {
+            alarms.set(name, time);
+            return;
+        }
+        groupAlarmTimes.put(name, time);
+        alarmGroups.put(name, group);
+        updateGroupAlarm(group);
+    }
+
+    /**
+     * Sets the alarm of the given group for the earliest of its listeners, or cancels it if none
+     * of them have one.
+     */
+    private void updateGroupAlarm(String group) {
+        long time = Long.MAX_VALUE;
+        for (Map.Entry<String, String> entry : alarmGroups.entrySet()) {
+            if (entry.getValue().equals(group)) {
+                time = Math.min(time, groupAlarmTimes.get(entry.getKey()));
+            }
+        }
+        if (time == Long.MAX_VALUE) {
+            alarms.cancel(group);
+        } else {
+            alarms.set(group, time);
+        }
+    }
+
+    private void removeAll() {
+        for (String name : listeners.keySet()) {
+            remove(name);
+        }
+    }
+
+    private void remove(String name) {
+        cancel(name);
+        store.setNextSyncTime(name, 0);
+        states.put(name, State.IDLE);
+    }
+
+    /**
+     * Cancels the listener's alarm, but keeps when it was supposed to sync.
+     */
+    private void cancel(String name) {
+        // The listener may have changed groups since, so go by the one its alarm was set for.
+        String group = alarmGroups.remove(name);
+        if (group != null) {
+            groupAlarmTimes.remove(name);
+            updateGroupAlarm(group);
+        } else {
+            alarms.cancel(name);
+        }
+        latestPending.remove(name);
+        if (coalescer != null) {
+            coalescer.remove(name);
+            batchChanged = true;
+        }
+    }
+
+    private void enqueue(String name, long time) {
+        Pending entry = new Pending(name, time);
+        latestPending.put(name, entry);
+        pending.add(entry);
+    }
+
+    private Pending peekPending() {
+        Pending next;
+        // Skip entries that have been rescheduled or canceled since.
+        while ((next = pending.peek()) != null && latestPending.get(next.name) != next) {
+            pending.poll();
+        }
+        return next;
+    }
+
+    private ListenerConfig config(String name) {
+        ListenerConfig config = listeners.get(name);
+        if (config == null) {
+            throw new IllegalArgumentException("Unknown listener: " + name);
+        }
+        return config;
+    }
+
+    private static long findOrCreateSeed(StateStore store) {
+        long seed = store.getSeed();
+        // Every install used to get the same seed, so replace it.
+        if (seed != 0 && seed != LEGACY_SEED) return seed;
+
+        SecureRandom random = new SecureRandom();
+        do {
+            seed = random.nextLong();
+        } while (seed == 0 || seed == LEGACY_SEED);
+        store.setSeed(seed);
+
+        return seed;
+    }
+
+    private static final class Pending implements Comparable<Pending> {
+        final String name;
+        final long time;
+
+        Pending(String name, long time) {
+            this.name = name;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            return Long.compare(time, other.time);
+        }
+    }
+}
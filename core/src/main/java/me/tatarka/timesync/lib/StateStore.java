@@ -0,0 +1,52 @@
+package me.tatarka.timesync.lib;
+
+/**
+ * Scheduling state that is kept across restarts. Changes only have to be persisted on {@link
+ * #flush()}, but retry state must not be lost on a crash after that. On android this is kept in
+ * shared preferences or a memory-mapped file.
+ */
+public interface StateStore {
+    long getSeed();
+
+    void setSeed(long seed);
+
+    boolean isPowerConnected();
+
+    void setPowerConnected(boolean value);
+
+    long getLastFailedTimeSpan(String name);
+
+    void setLastFailedTimeSpan(String name, long timeSpan);
+
+    /**
+     * Returns how many times in a row the listener has failed to sync.
+     */
+    int getFailedAttempts(String name);
+
+    void setFailedAttempts(String name, int attempts);
+
+    /**
+     * Returns the latest time the listener's next sync is scheduled for, or 0 if it isn't.
+     */
+    long getNextSyncTime(String name);
+
+    void setNextSyncTime(String name, long time);
+
+    /**
+     * Returns the validator the listener's last successful sync returned, or null if there is
+     * none.
+     */
+    String getValidator(String name);
+
+    /**
+     * Sets the listener's validator, null to clear it. This is set right before the retry state is
+     * reset after a successful sync, and should be persisted along with it on the next {@link
+     * #flush()}.
+     */
+    void setValidator(String name, String validator);
+
+    /**
+     * Persists all changes made since the last flush.
+     */
+    void flush();
+}
@@ -0,0 +1,291 @@
+package me.tatarka.timesync.lib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The dependencies between listeners, declared with {@code dependsOn}. Listeners that sync
+ * together do so as a {@link Run}, in which a listener only starts once every listener it depends
+ * on has succeeded, and is skipped if any of them failed. A run always includes every listener
+ * that depends on one in it, so that a sync upstream is followed by a sync downstream.
+ *
+ * <p>Not thread safe, a run should only be used from the thread that started it.</p>
+ */
+final class SyncGraph {
+    private static final List<String> NONE = Collections.emptyList();
+
+    private final Map<String, List<String>> upstream = new HashMap<>();
+    private final Map<String, List<String>> downstream = new HashMap<>();
+
+    /**
+     * Creates a graph from the dependencies of each listener.
+     *
+     * @param dependsOn the names each listener depends on, by name. Every listener must be in the
+     *                  map.
+     * @throws IllegalArgumentException if a listener depends on one that isn't in the map, or the
+     *                                  dependencies have a cycle
+     */
+    SyncGraph(Map<String, ? extends Collection<String>> dependsOn) {
+        for (Map.Entry<String, ? extends Collection<String>> entry : dependsOn.entrySet()) {
+            String name = entry.getKey();
+            for (String dependency : entry.getValue()) {
+                String error = checkEdge(dependsOn, name, dependency);
+                if (error != null) {
+                    throw new IllegalArgumentException(error);
+                }
+                add(upstream, name, dependency);
+                add(downstream, dependency, name);
+            }
+        }
+        checkAcyclic(dependsOn.keySet());
+    }
+
+    private SyncGraph() {
+    }
+
+    /**
+     * Creates a graph from the dependencies of each listener, leaving out the ones that are
+     * invalid instead of throwing. Use this for dependencies that were already stored, so that a
+     * bad one can't keep the listeners from syncing at all. Which edge of a cycle is left out
+     * depends on the order of the map.
+     *
+     * @param dependsOn the names each listener depends on, by name
+     * @param errors    why each dependency that was left out is invalid is added to this
+     */
+    static SyncGraph lenient(Map<String, ? extends Collection<String>> dependsOn, List<String> errors) {
+        SyncGraph graph = new SyncGraph();
+        for (Map.Entry<String, ? extends Collection<String>> entry : dependsOn.entrySet()) {
+            String name = entry.getKey();
+            for (String dependency : entry.getValue()) {
+                String error = checkEdge(dependsOn, name, dependency);
+                if (error == null && graph.reaches(name, dependency)) {
+                    error = "TimeSync {" + name + "} depends on itself through dependsOn";
+                }
+                if (error != null) {
+                    errors.add(error);
+                    continue;
+                }
+                add(graph.upstream, name, dependency);
+                add(graph.downstream, dependency, name);
+            }
+        }
+        return graph;
+    }
+
+    private static String checkEdge(Map<String, ?> dependsOn, String name, String dependency) {
+        if (!dependsOn.containsKey(dependency)) {
+            return "TimeSync {" + name + "} depends on unknown TimeSync {" + dependency + "}";
+        }
+        if (dependency.equals(name)) {
+            return "TimeSync {" + name + "} depends on itself";
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if no listener depends on another, so that every sync can run on its own.
+     */
+    boolean isEmpty() {
+        return upstream.isEmpty();
+    }
+
+    /**
+     * Starts a run of the given listeners and every listener that depends on them.
+     */
+    Run start(Collection<String> names) {
+        return new Run(names);
+    }
+
+    private void checkAcyclic(Collection<String> names) {
+        // 0 = not visited, 1 = on the current path, 2 = done.
+        Map<String, Integer> marks = new HashMap<>();
+        for (String name : names) {
+            visit(name, marks);
+        }
+    }
+
+    private void visit(String name, Map<String, Integer> marks) {
+        Integer mark = marks.get(name);
+        if (mark != null) {
+            if (mark == 1) {
+                throw new IllegalArgumentException("TimeSync {" + name + "} depends on itself through dependsOn");
+            }
+            return;
+        }
+        marks.put(name, 1);
+        for (String next : downstreamOf(name)) {
+            visit(next, marks);
+        }
+        marks.put(name, 2);
+    }
+
+    /**
+     * Returns true if {@code to} syncs after {@code from}, directly or through other listeners.
+     */
+    private boolean reaches(String from, String to) {
+        List<String> queue = new ArrayList<>(downstreamOf(from));
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < queue.size(); i++) {
+            String next = queue.get(i);
+            if (next.equals(to)) return true;
+            if (seen.add(next)) {
+                queue.addAll(downstreamOf(next));
+            }
+        }
+        return false;
+    }
+
+    private List<String> downstreamOf(String name) {
+        List<String> names = downstream.get(name);
+        return names == null ? NONE : names;
+    }
+
+    private List<String> upstreamOf(String name) {
+        List<String> names = upstream.get(name);
+        return names == null ? NONE : names;
+    }
+
+    private static void add(Map<String, List<String>> map, String key, String value) {
+        List<String> values = map.get(key);
+        if (values == null) {
+            values = new ArrayList<>();
+            map.put(key, values);
+        }
+        values.add(value);
+    }
+
+    /**
+     * A set of listeners syncing together. Poll the listeners that are ready with {@link
+     * #pollReady()}, and report how each went. Those reported as succeeded may make others ready.
+     */
+    final class Run {
+        private final Map<String, Node> nodes = new LinkedHashMap<>();
+        private final List<String> ready = new ArrayList<>();
+        private int remaining;
+        private long criticalPath;
+
+        private Run(Collection<String> names) {
+            List<String> queue = new ArrayList<>(names);
+            for (int i = 0; i < queue.size(); i++) {
+                String name = queue.get(i);
+                if (nodes.containsKey(name)) continue;
+                nodes.put(name, new Node());
+                queue.addAll(downstreamOf(name));
+            }
+            for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+                for (String dependency : upstreamOf(entry.getKey())) {
+                    if (nodes.containsKey(dependency)) {
+                        entry.getValue().waitingFor++;
+                    }
+                }
+            }
+            for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+                if (entry.getValue().waitingFor == 0) {
+                    ready.add(entry.getKey());
+                }
+            }
+            remaining = nodes.size();
+        }
+
+        /**
+         * Returns true if no listener in the run depends on another, so that they can all sync on
+         * their own.
+         */
+        boolean isIndependent() {
+            return ready.size() == nodes.size();
+        }
+
+        /**
+         * Removes and returns the listeners whose dependencies in the run have all succeeded.
+         * These can sync in parallel.
+         */
+        List<String> pollReady() {
+            if (ready.isEmpty()) return NONE;
+            List<String> names = new ArrayList<>(ready);
+            ready.clear();
+            return names;
+        }
+
+        /**
+         * Records that the given listener synced successfully, making the listeners that were
+         * only waiting for it ready.
+         *
+         * @param duration how long the sync took, in any unit as long as it's the same for the
+         *                 whole run
+         */
+        void onSucceeded(String name, long duration) {
+            Node node = finish(name);
+            if (node == null) return;
+            long path = node.upstreamPath + duration;
+            criticalPath = Math.max(criticalPath, path);
+            for (String next : downstreamOf(name)) {
+                Node nextNode = nodes.get(next);
+                nextNode.upstreamPath = Math.max(nextNode.upstreamPath, path);
+                if (--nextNode.waitingFor == 0 && !nextNode.done) {
+                    ready.add(next);
+                }
+            }
+        }
+
+        /**
+         * Records that the given listener failed or didn't sync, so that every listener in the run
+         * that depends on it is skipped.
+         *
+         * @return the listeners that were skipped because of it
+         */
+        List<String> onFailed(String name) {
+            if (finish(name) == null) return NONE;
+            List<String> skipped = new ArrayList<>();
+            List<String> queue = new ArrayList<>(downstreamOf(name));
+            for (int i = 0; i < queue.size(); i++) {
+                String next = queue.get(i);
+                Node nextNode = nodes.get(next);
+                if (nextNode.done) continue;
+                nextNode.done = true;
+                remaining--;
+                skipped.add(next);
+                queue.addAll(downstreamOf(next));
+            }
+            return skipped;
+        }
+
+        /**
+         * Returns true once every listener in the run has either synced or been skipped.
+         */
+        boolean isDone() {
+            return remaining == 0;
+        }
+
+        /**
+         * Returns the longest total duration of a chain of listeners that each depend on the
+         * previous one, which is how long the run takes if everything that can run in parallel
+         * does.
+         */
+        long getCriticalPath() {
+            return criticalPath;
+        }
+
+        private Node finish(String name) {
+            Node node = nodes.get(name);
+            if (node == null || node.done) return null;
+            node.done = true;
+            remaining--;
+            return node;
+        }
+    }
+
+    private static final class Node {
+        // The number of dependencies in the run that haven't succeeded yet.
+        int waitingFor;
+        // The longest path through the dependencies in the run that have succeeded.
+        long upstreamPath;
+        boolean done;
+    }
+}
@@ -0,0 +1,209 @@
+package me.tatarka.timesync.lib;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timer wheel of named timers. Time is divided into ticks, and each level of the
+ * wheel has 64 slots that cover 64 times as many ticks as the level below it. A timer is put in
+ * the lowest level that can hold it, and is moved down a level whenever the level below wraps
+ * around, so scheduling, canceling and expiring a timer all take constant time.
+ *
+ * <p>Timers never expire early, but may expire up to a tick late. Not thread safe.</p>
+ */
+final class TimerWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    // Timers further out than this are put in the last slot, and moved again once they get there.
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickMillis;
+    // The head of the list of timers in each slot.
+    private final Node[][] slots = new Node[LEVELS][SLOTS];
+    // Timers that were already due when they were scheduled.
+    private final Node due = new Node(null, 0);
+    private final Map<String, Node> nodes = new HashMap<>();
+    // The next tick to expire timers for.
+    private long currentTick;
+
+    /**
+     * @param tickMillis the length of a tick in milliseconds
+     */
+    TimerWheel(long tickMillis) {
+        this.tickMillis = tickMillis;
+        due.prev = due;
+        due.next = due;
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Node head = new Node(null, 0);
+                head.prev = head;
+                head.next = head;
+                slots[level][slot] = head;
+            }
+        }
+    }
+
+    /**
+     * Schedules the named timer, replacing the timer of the same name if there is one.
+     *
+     * @param name the name of the timer
+     * @param time when the timer should expire, in unix time milliseconds
+     * @param now  the current time, in unix time milliseconds
+     */
+    void schedule(String name, long time, long now) {
+        if (nodes.isEmpty()) {
+            // Nothing has been expiring, so catch up without going through every tick since.
+            currentTick = now / tickMillis;
+        }
+        cancel(name);
+        // Round up, so that the timer doesn't expire early.
+        Node node = new Node(name, (time + tickMillis - 1) / tickMillis);
+        nodes.put(name, node);
+        insert(node);
+    }
+
+    /**
+     * Cancels the named timer, if it is scheduled.
+     */
+    void cancel(String name) {
+        Node node = nodes.remove(name);
+        if (node != null) {
+            unlink(node);
+        }
+    }
+
+    boolean isScheduled(String name) {
+        return nodes.containsKey(name);
+    }
+
+    boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    /**
+     * Expires every timer that is due by the given time.
+     *
+     * @param now     the current time, in unix time milliseconds
+     * @param expired the names of the expired timers are added to this list
+     */
+    void advance(long now, List<String> expired) {
+        expire(due, expired);
+        long targetTick = now / tickMillis;
+        while (currentTick <= targetTick) {
+            if (nodes.isEmpty()) {
+                currentTick = targetTick + 1;
+                return;
+            }
+            int index = (int) (currentTick & MASK);
+            if (index == 0) {
+                cascade();
+            }
+            expire(slots[0][index], expired);
+            currentTick++;
+            // Skip over the empty slots.
+            currentTick = Math.min(nextTick(), targetTick + 1);
+        }
+    }
+
+    /**
+     * Returns when {@link #advance(long, List)} should be called next, or {@link Long#MAX_VALUE} if
+     * there are no timers. This is when the next timer expires, or when timers need to be moved
+     * down a level, whichever is sooner.
+     */
+    long nextTime() {
+        if (nodes.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        if (due.next != due) {
+            return (currentTick - 1) * tickMillis;
+        }
+        return nextTick() * tickMillis;
+    }
+
+    private void expire(Node head, List<String> expired) {
+        while (head.next != head) {
+            Node node = head.next;
+            unlink(node);
+            nodes.remove(node.name);
+            expired.add(node.name);
+        }
+    }
+
+    private long nextTick() {
+        int index = (int) (currentTick & MASK);
+        if (index == 0) {
+            return currentTick;
+        }
+        for (int i = index; i < SLOTS; i++) {
+            Node head = slots[0][i];
+            if (head.next != head) {
+                return currentTick + i - index;
+            }
+        }
+        return currentTick + SLOTS - index;
+    }
+
+    /**
+     * Moves the timers of the next slot of each level down, for as many levels as have wrapped
+     * around.
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            int index = (int) ((currentTick >>> (SLOT_BITS * level)) & MASK);
+            Node head = slots[level][index];
+            Node node = head.next;
+            head.prev = head;
+            head.next = head;
+            while (node != head) {
+                Node next = node.next;
+                insert(node);
+                node = next;
+            }
+            if (index != 0) {
+                break;
+            }
+        }
+    }
+
+    private void insert(Node node) {
+        Node head;
+        if (node.tick < currentTick) {
+            head = due;
+        } else {
+            long delta = Math.min(node.tick - currentTick, MAX_DELTA);
+            long tick = currentTick + delta;
+            int level = 0;
+            while (delta >= SLOTS) {
+                delta >>>= SLOT_BITS;
+                level++;
+            }
+            head = slots[level][(int) ((tick >>> (SLOT_BITS * level)) & MASK)];
+        }
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    private static void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    private static final class Node {
+        final String name;
+        final long tick;
+        Node prev;
+        Node next;
+
+        Node(String name, long tick) {
+            this.name = name;
+            this.tick = tick;
+        }
+    }
+}
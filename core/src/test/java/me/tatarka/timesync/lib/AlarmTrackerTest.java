@@ -0,0 +1,139 @@
+package me.tatarka.timesync.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class AlarmTrackerTest {
+    private static final int TYPE = 0;
+    private static final int OTHER_TYPE = 1;
+
+    private AlarmTracker tracker;
+    private RecordingAlarms alarms;
+
+    @Before
+    public void setup() {
+        tracker = new AlarmTracker();
+        alarms = new RecordingAlarms();
+    }
+
+    @Test
+    public void firstChangeIsAlwaysPassedOn() {
+        tracker.set("a", 1000);
+        tracker.cancel("b");
+        tracker.apply(TYPE, alarms);
+        assertEquals(Arrays.asList("set a 0 1000", "cancel b"), alarms.calls);
+    }
+
+    @Test
+    public void unchangedAlarmIsNotSetAgain() {
+        tracker.set("a", 1000);
+        tracker.apply(TYPE, alarms);
+        alarms.calls.clear();
+
+        tracker.set("a", 1000);
+        tracker.apply(TYPE, alarms);
+        assertEquals(Collections.emptyList(), alarms.calls);
+    }
+
+    @Test
+    public void changedTimeIsSetAgain() {
+        tracker.set("a", 1000);
+        tracker.apply(TYPE, alarms);
+        alarms.calls.clear();
+
+        tracker.set("a", 2000);
+        tracker.apply(TYPE, alarms);
+        assertEquals(Collections.singletonList("set a 0 2000"), alarms.calls);
+    }
+
+    @Test
+    public void changedTypeIsSetAgain() {
+        tracker.set("a", 1000);
+        tracker.apply(TYPE, alarms);
+        alarms.calls.clear();
+
+        tracker.set("a", 1000);
+        tracker.apply(OTHER_TYPE, alarms);
+        assertEquals(Collections.singletonList("set a 1 1000"), alarms.calls);
+    }
+
+    @Test
+    public void canceledAlarmIsNotCanceledAgain() {
+        tracker.set("a", 1000);
+        tracker.apply(TYPE, alarms);
+        tracker.cancel("a");
+        tracker.apply(TYPE, alarms);
+        alarms.calls.clear();
+
+        tracker.cancel("a");
+        tracker.apply(TYPE, alarms);
+        assertEquals(Collections.emptyList(), alarms.calls);
+    }
+
+    @Test
+    public void onlyLastChangeBeforeApplyIsPassedOn() {
+        tracker.set("a", 1000);
+        tracker.apply(TYPE, alarms);
+        alarms.calls.clear();
+
+        tracker.set("a", 2000);
+        tracker.set("a", 3000);
+        tracker.cancel("a");
+        tracker.apply(TYPE, alarms);
+        assertEquals(Collections.singletonList("cancel a"), alarms.calls);
+    }
+
+    @Test
+    public void onFiredReturnsTimeAlarmWasSetFor() {
+        tracker.set("a", 1000);
+        tracker.apply(TYPE, alarms);
+        tracker.set("a", 2000);
+        tracker.apply(TYPE, alarms);
+
+        assertEquals(2000, tracker.onFired("a"));
+        // It's no longer set.
+        assertEquals(0, tracker.onFired("a"));
+    }
+
+    @Test
+    public void onFiredOfUnknownAlarmReturnsZero() {
+        assertEquals(0, tracker.onFired("a"));
+        tracker.set("b", 1000);
+        assertEquals(0, tracker.onFired("b"));
+    }
+
+    @Test
+    public void firedAlarmIsSetAgain() {
+        tracker.set("a", 1000);
+        tracker.apply(TYPE, alarms);
+        alarms.calls.clear();
+
+        tracker.onFired("a");
+        tracker.set("a", 1000);
+        tracker.cancel("b");
+        tracker.onFired("b");
+        tracker.apply(TYPE, alarms);
+        assertEquals(Collections.singletonList("set a 0 1000"), alarms.calls);
+    }
+
+    private static final class RecordingAlarms implements AlarmTracker.Alarms {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void set(String name, int type, long time) {
+            calls.add("set " + name + " " + type + " " + time);
+        }
+
+        @Override
+        public void cancel(String name) {
+            calls.add("cancel " + name);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package me.tatarka.timesync.lib;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BackoffPolicyTest {
+    private static final long EVERY = 60 * 1000;
+
+    @Test
+    public void exponentialDoublesUpToEvery() {
+        long delay = 0;
+        long[] expected = {500, 1000, 2000, 4000, 8000, 16000, 32000, 60000, 60000};
+        for (int attempt = 1; attempt <= expected.length; attempt++) {
+            delay = BackoffPolicy.EXPONENTIAL.nextDelay(attempt, delay, EVERY, 0);
+            assertEquals(expected[attempt - 1], delay);
+        }
+    }
+
+    @Test
+    public void maxDelayIsNeverShorterThanMinimum() {
+        long delay = BackoffPolicy.EXPONENTIAL.nextDelay(5, 4000, 1000, 0);
+        assertEquals(BackoffPolicy.MIN_MAX_DELAY, delay);
+    }
+
+    @Test
+    public void exponentialDoesNotOverflow() {
+        long delay = BackoffPolicy.EXPONENTIAL.nextDelay(100, Long.MAX_VALUE / 2 + 1, Long.MAX_VALUE, 0);
+        assertEquals(Long.MAX_VALUE, delay);
+    }
+
+    @Test
+    public void fullJitterIsBelowExponential() {
+        Random random = new Random(1);
+        for (int attempt = 1; attempt <= 10; attempt++) {
+            long upper = Math.min(BackoffPolicy.BASE_DELAY << (attempt - 1), EVERY);
+            for (int i = 0; i < 1000; i++) {
+                long delay = BackoffPolicy.FULL_JITTER.nextDelay(attempt, 0, EVERY, random.nextLong());
+                assertTrue(delay >= 0 && delay < upper);
+            }
+        }
+    }
+
+    @Test
+    public void decorrelatedJitterIsBetweenBaseAndThreeTimesLast() {
+        Random random = new Random(2);
+        long delay = 0;
+        for (int attempt = 1; attempt <= 1000; attempt++) {
+            long upper = Math.min(delay == 0 ? BackoffPolicy.BASE_DELAY * 3 : delay * 3, EVERY);
+            delay = BackoffPolicy.DECORRELATED_JITTER.nextDelay(attempt, delay, EVERY, random.nextLong());
+            assertTrue(delay >= BackoffPolicy.BASE_DELAY && delay < upper);
+        }
+    }
+
+    @Test
+    public void jitterDependsOnlyOnRandomValue() {
+        assertEquals(BackoffPolicy.FULL_JITTER.nextDelay(4, 0, EVERY, 42),
+                BackoffPolicy.FULL_JITTER.nextDelay(4, 0, EVERY, 42));
+        assertEquals(BackoffPolicy.DECORRELATED_JITTER.nextDelay(4, 2000, EVERY, 42),
+                BackoffPolicy.DECORRELATED_JITTER.nextDelay(4, 2000, EVERY, 42));
+    }
+
+    @Test
+    public void fromIdReturnsPolicyWithId() {
+        for (BackoffPolicy policy : BackoffPolicy.values()) {
+            assertEquals(policy, BackoffPolicy.fromId(policy.id));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromIdRejectsUnknownId() {
+        BackoffPolicy.fromId(3);
+    }
+}
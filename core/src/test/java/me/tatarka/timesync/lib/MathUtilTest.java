@@ -0,0 +1,117 @@
+package me.tatarka.timesync.lib;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static me.tatarka.timesync.lib.MathUtil.divCeil;
+import static me.tatarka.timesync.lib.MathUtil.listenerSeed;
+import static me.tatarka.timesync.lib.MathUtil.randomInRange;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MathUtilTest {
+    private static final long RANGE = 5 * 60 * 1000;
+    private static final int DEVICES = 100000;
+    private static final int BUCKETS = 100;
+    private static final int JOINT_BUCKETS = 10;
+    // The z-score of a 0.001 significance level.
+    private static final double Z = 3.090;
+
+    @Test
+    public void divCeilRoundsUp() {
+        assertEquals(2, divCeil(4, 2));
+        assertEquals(3, divCeil(5, 2));
+        assertEquals(-2, divCeil(-5, 2));
+        assertEquals(3, divCeil(-5, -2));
+        assertEquals(Long.MIN_VALUE, divCeil(Long.MIN_VALUE, -1));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void divCeilByZeroThrows() {
+        divCeil(1, 0);
+    }
+
+    @Test
+    public void randomInRangeIsWithinRange() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = randomInRange(random.nextLong(), -10, 10);
+            assertTrue(value >= -10 && value < 10);
+        }
+        assertEquals(7, randomInRange(random.nextLong(), 7, 7));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void randomInRangeRejectsUpperBelowLower() {
+        randomInRange(0, 1, 0);
+    }
+
+    @Test
+    public void listenerSeedDependsOnDeviceAndName() {
+        assertEquals(listenerSeed(1, "a"), listenerSeed(1, "a"));
+        assertTrue(listenerSeed(1, "a") != listenerSeed(2, "a"));
+        assertTrue(listenerSeed(1, "a") != listenerSeed(1, "b"));
+    }
+
+    /**
+     * Offsets should be spread evenly over the range across devices, and the offsets of the
+     * listeners of a single device shouldn't be correlated. Device seeds are drawn from a fixed
+     * seed so that the result is the same on every run.
+     */
+    @Test
+    public void offsetsAreSpreadEvenly() {
+        Random random = new Random(0x5eed);
+        long[] buckets = new long[BUCKETS];
+        long[] jointBuckets = new long[JOINT_BUCKETS * JOINT_BUCKETS];
+        for (int i = 0; i < DEVICES; i++) {
+            long seed = random.nextLong();
+            long first = randomInRange(listenerSeed(seed, "com.example.FirstSync"), 0, RANGE);
+            long second = randomInRange(listenerSeed(seed, "com.example.SecondSync"), 0, RANGE);
+            buckets[bucket(first, BUCKETS)]++;
+            jointBuckets[bucket(first, JOINT_BUCKETS) * JOINT_BUCKETS + bucket(second, JOINT_BUCKETS)]++;
+        }
+        assertUniform("Spread across devices", buckets);
+        assertUniform("Spread across listeners of a device", jointBuckets);
+    }
+
+    /**
+     * Offsets of similarly named listeners on devices with consecutive seeds shouldn't line up,
+     * since neither string hash codes nor seeds are well distributed on their own.
+     */
+    @Test
+    public void similarNamesAreSpreadEvenly() {
+        long[] buckets = new long[BUCKETS];
+        for (int seed = 1; seed <= DEVICES / 10; seed++) {
+            for (int i = 0; i < 10; i++) {
+                buckets[bucket(randomInRange(listenerSeed(seed, "Sync" + i), 0, RANGE), BUCKETS)]++;
+            }
+        }
+        assertUniform("Spread across similar names", buckets);
+    }
+
+    private static int bucket(long offset, int buckets) {
+        return (int) (offset * buckets / RANGE);
+    }
+
+    /**
+     * Runs a chi-squared test of the counts against a uniform distribution.
+     */
+    private static void assertUniform(String name, long[] counts) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        double expected = (double) total / counts.length;
+        double chiSquared = 0;
+        for (long count : counts) {
+            double diff = count - expected;
+            chiSquared += diff * diff / expected;
+        }
+        int degreesOfFreedom = counts.length - 1;
+        // Wilson-Hilferty approximation of the critical value.
+        double a = 2.0 / (9 * degreesOfFreedom);
+        double critical = degreesOfFreedom * Math.pow(1 - a + Z * Math.sqrt(a), 3);
+        assertTrue(name + ": chi-squared " + chiSquared + " is above " + critical, chiSquared <= critical);
+    }
+}
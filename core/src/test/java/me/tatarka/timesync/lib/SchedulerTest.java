@@ -0,0 +1,368 @@
+package me.tatarka.timesync.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static me.tatarka.timesync.lib.MathUtil.listenerSeed;
+import static me.tatarka.timesync.lib.MathUtil.randomInRange;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SchedulerTest {
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+    // Midnight UTC, 2015-01-01.
+    private static final long MIDNIGHT = 1420070400000L;
+    private static final long SEED = 42;
+
+    private FakeClock clock;
+    private FakeAlarmSink alarms;
+    private MemoryStateStore store;
+    private Map<String, TestConfig> configs;
+
+    @Before
+    public void setup() {
+        clock = new FakeClock(MIDNIGHT + MINUTE);
+        alarms = new FakeAlarmSink();
+        store = new MemoryStateStore();
+        store.setSeed(SEED);
+        configs = new LinkedHashMap<>();
+    }
+
+    @Test
+    public void startSchedulesNextEventOffsetWithinRange() {
+        configs.put("a", new TestConfig(HOUR, 5 * MINUTE));
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+        scheduler.commit();
+
+        long time = MIDNIGHT + HOUR + offset("a", 5 * MINUTE);
+        assertEquals(Scheduler.State.SCHEDULED, scheduler.getState("a"));
+        assertEquals((Long) time, alarms.alarms.get("a"));
+        assertEquals(time, store.getNextSyncTime("a"));
+        assertEquals(time, scheduler.nextFireTime());
+        assertEquals(SEED, scheduler.getSeed());
+    }
+
+    @Test
+    public void disabledListenerIsIdle() {
+        TestConfig config = new TestConfig(HOUR, 0);
+        config.enabled = false;
+        configs.put("a", config);
+        configs.put("b", new TestConfig(0, 0));
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+
+        assertEquals(Scheduler.State.IDLE, scheduler.getState("a"));
+        assertEquals(Scheduler.State.IDLE, scheduler.getState("b"));
+        assertTrue(alarms.alarms.isEmpty());
+        assertEquals(Long.MAX_VALUE, scheduler.nextFireTime());
+    }
+
+    @Test
+    public void pollDueReturnsListenersOnceDue() {
+        configs.put("a", new TestConfig(HOUR, 0));
+        configs.put("b", new TestConfig(2 * HOUR, 0));
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+
+        clock.set(MIDNIGHT + HOUR - 1);
+        assertEquals(Collections.emptyList(), scheduler.pollDue());
+
+        clock.set(MIDNIGHT + 2 * HOUR);
+        assertEquals(Arrays.asList("a", "b"), scheduler.pollDue());
+        assertEquals(Long.MAX_VALUE, scheduler.nextFireTime());
+    }
+
+    @Test
+    public void updateReschedules() {
+        TestConfig config = new TestConfig(HOUR, 0);
+        configs.put("a", config);
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+
+        config.every = 15 * MINUTE;
+        scheduler.update("a");
+        assertEquals((Long) (MIDNIGHT + 15 * MINUTE), alarms.alarms.get("a"));
+        assertEquals(MIDNIGHT + 15 * MINUTE, scheduler.nextFireTime());
+    }
+
+    @Test
+    public void stopCancelsEverything() {
+        configs.put("a", new TestConfig(HOUR, 0));
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+        scheduler.stop();
+
+        assertEquals(Scheduler.State.IDLE, scheduler.getState("a"));
+        assertTrue(alarms.alarms.isEmpty());
+        assertEquals(0, store.getNextSyncTime("a"));
+        assertEquals(Long.MAX_VALUE, scheduler.nextFireTime());
+    }
+
+    @Test
+    public void failedSyncIsRetriedWithBackoff() {
+        configs.put("a", new TestConfig(HOUR, 0));
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+
+        // Retries are lined up on multiples of the delay since midnight, like regular syncs.
+        clock.set(MIDNIGHT + MINUTE + 100);
+        scheduler.onSyncFailed("a");
+        assertEquals(Scheduler.State.RETRYING, scheduler.getState("a"));
+        assertEquals(1, store.getFailedAttempts("a"));
+        assertEquals(500, store.getLastFailedTimeSpan("a"));
+        assertEquals((Long) (MIDNIGHT + MINUTE + 500), alarms.alarms.get("a"));
+
+        scheduler.onSyncFailed("a");
+        assertEquals(2, store.getFailedAttempts("a"));
+        assertEquals(1000, store.getLastFailedTimeSpan("a"));
+        assertEquals((Long) (MIDNIGHT + MINUTE + 1000), alarms.alarms.get("a"));
+
+        scheduler.onSyncSucceeded("a");
+        assertEquals(Scheduler.State.SCHEDULED, scheduler.getState("a"));
+        assertEquals(0, store.getFailedAttempts("a"));
+        assertEquals(0, store.getLastFailedTimeSpan("a"));
+        assertEquals((Long) (MIDNIGHT + HOUR), alarms.alarms.get("a"));
+    }
+
+    @Test
+    public void jitteredRetryIsNotLinedUp() {
+        TestConfig config = new TestConfig(HOUR, 5 * MINUTE);
+        config.backoff = BackoffPolicy.FULL_JITTER;
+        configs.put("a", config);
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+
+        scheduler.onSyncFailed("a");
+        long time = alarms.alarms.get("a");
+        assertTrue(time >= MIDNIGHT + MINUTE && time < MIDNIGHT + MINUTE + BackoffPolicy.BASE_DELAY);
+        assertEquals(time, store.getNextSyncTime("a"));
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        TestConfig config = new TestConfig(HOUR, 0);
+        config.maxAttempts = 2;
+        configs.put("a", config);
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+
+        scheduler.onSyncFailed("a");
+        assertEquals(Scheduler.State.RETRYING, scheduler.getState("a"));
+        scheduler.onSyncFailed("a");
+        assertEquals(Scheduler.State.SCHEDULED, scheduler.getState("a"));
+        assertEquals(0, store.getFailedAttempts("a"));
+        assertEquals((Long) (MIDNIGHT + HOUR), alarms.alarms.get("a"));
+    }
+
+    @Test
+    public void stateIsRestoredFromStore() {
+        configs.put("a", new TestConfig(HOUR, 0));
+        configs.put("b", new TestConfig(HOUR, 0));
+        configs.put("c", new TestConfig(HOUR, 0));
+        store.setNextSyncTime("a", MIDNIGHT + 2 * HOUR);
+        store.setNextSyncTime("b", MIDNIGHT + 3 * HOUR);
+        store.setFailedAttempts("b", 1);
+        Scheduler scheduler = scheduler(false);
+
+        assertEquals(Scheduler.State.SCHEDULED, scheduler.getState("a"));
+        assertEquals(Scheduler.State.RETRYING, scheduler.getState("b"));
+        assertEquals(Scheduler.State.IDLE, scheduler.getState("c"));
+        assertEquals(MIDNIGHT + 2 * HOUR, scheduler.nextFireTime());
+    }
+
+    @Test
+    public void seedIsCreatedOnceAndKept() {
+        store.setSeed(0);
+        configs.put("a", new TestConfig(HOUR, 0));
+        long seed = scheduler(false).getSeed();
+        assertTrue(seed != 0);
+        assertEquals(seed, store.getSeed());
+        assertEquals(seed, scheduler(false).getSeed());
+    }
+
+    @Test
+    public void syncInexactKeepsSoonerSync() {
+        configs.put("a", new TestConfig(HOUR, 5 * MINUTE));
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+
+        // The regular sync is sooner than one offset from now would be.
+        long time = MIDNIGHT + HOUR + offset("a", 5 * MINUTE);
+        clock.set(MIDNIGHT + HOUR);
+        scheduler.syncInexact("a");
+        assertEquals(time, store.getNextSyncTime("a"));
+
+        // The regular sync has already passed.
+        clock.set(MIDNIGHT + 2 * HOUR + MINUTE);
+        scheduler.syncInexact("a");
+        assertEquals(clock.currentTimeMillis() + offset("a", 5 * MINUTE), store.getNextSyncTime("a"));
+    }
+
+    @Test
+    public void networkLostWaitsAndResumesMostOverdueFirst() {
+        configs.put("a", new TestConfig(HOUR, 5 * MINUTE));
+        configs.put("b", new TestConfig(2 * HOUR, 5 * MINUTE));
+        TestConfig local = new TestConfig(HOUR, 0);
+        local.requiresNetwork = false;
+        configs.put("local", local);
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+
+        scheduler.onNetworkLost();
+        assertEquals(Scheduler.State.WAITING_FOR_NETWORK, scheduler.getState("a"));
+        assertEquals(Scheduler.State.WAITING_FOR_NETWORK, scheduler.getState("b"));
+        assertEquals(Scheduler.State.SCHEDULED, scheduler.getState("local"));
+        assertEquals(Collections.singleton("local"), alarms.alarms.keySet());
+
+        clock.set(MIDNIGHT + 3 * HOUR);
+        scheduler.onNetworkBack();
+        assertTrue(scheduler.isResuming());
+        assertEquals(Scheduler.State.RESUMING, scheduler.getState("a"));
+        assertEquals(Scheduler.State.RESUMING, scheduler.getState("b"));
+        // Each keeps an alarm in case the host is killed before they are resumed.
+        long aTime = MIDNIGHT + 3 * HOUR + offset("a", 5 * MINUTE);
+        long bTime = MIDNIGHT + 3 * HOUR + offset("b", 5 * MINUTE);
+        assertEquals((Long) aTime, alarms.alarms.get("a"));
+        assertEquals((Long) bTime, alarms.alarms.get("b"));
+        assertEquals(Math.min(aTime, bTime), scheduler.nextResumeTime());
+
+        clock.set(MIDNIGHT + 3 * HOUR + 5 * MINUTE);
+        assertEquals("a", scheduler.pollResume());
+        assertEquals("b", scheduler.pollResume());
+        assertNull(scheduler.pollResume());
+        assertFalse(scheduler.isResuming());
+        assertEquals(Collections.singleton("local"), alarms.alarms.keySet());
+    }
+
+    @Test
+    public void alarmFiredWhileResumingIsNotResumedAgain() {
+        configs.put("a", new TestConfig(HOUR, 5 * MINUTE));
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+        scheduler.onNetworkLost();
+        clock.set(MIDNIGHT + 3 * HOUR);
+        scheduler.onNetworkBack();
+
+        clock.set(scheduler.nextResumeTime());
+        scheduler.onAlarmFired("a");
+        assertFalse(scheduler.isResuming());
+        assertNull(scheduler.pollResume());
+    }
+
+    @Test
+    public void deferredListenerIsResumedOnceConstraintsAreMet() {
+        configs.put("a", new TestConfig(HOUR, 5 * MINUTE));
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+
+        clock.set(MIDNIGHT + HOUR + 5 * MINUTE);
+        scheduler.pollDue();
+        scheduler.defer("a");
+        assertEquals(Scheduler.State.DEFERRED, scheduler.getState("a"));
+        assertEquals((Long) (MIDNIGHT + 2 * HOUR + offset("a", 5 * MINUTE)), alarms.alarms.get("a"));
+
+        clock.set(MIDNIGHT + HOUR + 30 * MINUTE);
+        scheduler.resume("a");
+        assertEquals(Scheduler.State.RESUMING, scheduler.getState("a"));
+        long resumeTime = MIDNIGHT + HOUR + 30 * MINUTE + offset("a", 5 * MINUTE);
+        assertEquals(resumeTime, scheduler.nextResumeTime());
+        assertEquals((Long) resumeTime, alarms.alarms.get("a"));
+
+        clock.set(resumeTime);
+        assertEquals("a", scheduler.pollResume());
+        scheduler.onSyncSucceeded("a");
+        assertEquals(Scheduler.State.SCHEDULED, scheduler.getState("a"));
+    }
+
+    @Test
+    public void resumeIgnoresListenerThatIsNotDeferred() {
+        configs.put("a", new TestConfig(HOUR, 5 * MINUTE));
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+        scheduler.resume("a");
+        assertFalse(scheduler.isResuming());
+        assertEquals(Scheduler.State.SCHEDULED, scheduler.getState("a"));
+    }
+
+    @Test
+    public void groupSharesOneAlarm() {
+        TestConfig a = new TestConfig(HOUR, 5 * MINUTE);
+        a.group = "g";
+        TestConfig b = new TestConfig(2 * HOUR, 5 * MINUTE);
+        b.group = "g";
+        configs.put("a", a);
+        configs.put("b", b);
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+
+        // Listeners in a group share an offset.
+        long offset = randomInRange(listenerSeed(SEED, "g"), 0, 5 * MINUTE);
+        assertEquals(Collections.singleton("g"), alarms.alarms.keySet());
+        assertEquals((Long) (MIDNIGHT + HOUR + offset), alarms.alarms.get("g"));
+
+        clock.set(MIDNIGHT + HOUR + offset);
+        assertEquals(Collections.singletonList("a"), scheduler.onGroupFired("g"));
+        assertEquals((Long) (MIDNIGHT + 2 * HOUR + offset), alarms.alarms.get("g"));
+
+        clock.set(MIDNIGHT + 2 * HOUR + offset);
+        assertEquals(Collections.singletonList("b"), scheduler.onGroupFired("g"));
+        assertTrue(alarms.alarms.isEmpty());
+    }
+
+    @Test
+    public void coalescedListenersShareBatchAlarm() {
+        configs.put("a", new TestConfig(HOUR, 10 * MINUTE));
+        configs.put("b", new TestConfig(HOUR, 10 * MINUTE));
+        Scheduler scheduler = scheduler(true);
+        scheduler.start();
+        assertEquals(0, alarms.batchTime);
+
+        scheduler.commit();
+        assertTrue(alarms.alarms.isEmpty());
+        assertTrue(alarms.batchTime >= MIDNIGHT + HOUR && alarms.batchTime <= MIDNIGHT + HOUR + 10 * MINUTE);
+        assertEquals(Arrays.asList("a", "b"), alarms.batchNames);
+
+        clock.set(alarms.batchTime);
+        scheduler.onBatchFired(alarms.batchNames);
+        scheduler.commit();
+        assertEquals(0, alarms.batchTime);
+    }
+
+    @Test
+    public void powerChangeReschedulesAndKeepsDeferred() {
+        configs.put("a", new TestConfig(HOUR, 0));
+        configs.put("b", new TestConfig(HOUR, 0));
+        Scheduler scheduler = scheduler(false);
+        scheduler.start();
+        scheduler.defer("b");
+
+        scheduler.onPowerChanged(true);
+        assertTrue(store.isPowerConnected());
+        assertEquals(Scheduler.State.SCHEDULED, scheduler.getState("a"));
+        assertEquals(Scheduler.State.DEFERRED, scheduler.getState("b"));
+        assertEquals((Long) (MIDNIGHT + HOUR), alarms.alarms.get("a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownListenerThrows() {
+        scheduler(false).getState("a");
+    }
+
+    private Scheduler scheduler(boolean coalesce) {
+        return new Scheduler(clock, alarms, store, configs, coalesce);
+    }
+
+    private static long offset(String name, long range) {
+        return randomInRange(listenerSeed(SEED, name), 0, range);
+    }
+}
@@ -0,0 +1,156 @@
+package me.tatarka.timesync.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyncGraphTest {
+
+    @Test
+    public void listenerWaitsForItsDependencies() {
+        SyncGraph graph = new SyncGraph(dependsOn("a", "", "b", "", "c", "a,b"));
+        SyncGraph.Run run = graph.start(Arrays.asList("a", "b"));
+        assertFalse(run.isIndependent());
+        assertEquals(Arrays.asList("a", "b"), run.pollReady());
+
+        run.onSucceeded("a", 1);
+        assertEquals(Collections.emptyList(), run.pollReady());
+
+        run.onSucceeded("b", 1);
+        assertEquals(Collections.singletonList("c"), run.pollReady());
+        assertFalse(run.isDone());
+
+        run.onSucceeded("c", 1);
+        assertTrue(run.isDone());
+    }
+
+    @Test
+    public void runIncludesEverythingDownstream() {
+        SyncGraph graph = new SyncGraph(dependsOn("a", "", "b", "a", "c", "b", "d", ""));
+        SyncGraph.Run run = graph.start(Collections.singletonList("a"));
+        assertEquals(Collections.singletonList("a"), run.pollReady());
+        run.onSucceeded("a", 1);
+        assertEquals(Collections.singletonList("b"), run.pollReady());
+        run.onSucceeded("b", 1);
+        assertEquals(Collections.singletonList("c"), run.pollReady());
+        run.onSucceeded("c", 1);
+        assertTrue(run.isDone());
+    }
+
+    @Test
+    public void failureSkipsEverythingDownstream() {
+        SyncGraph graph = new SyncGraph(dependsOn("a", "", "b", "a", "c", "b", "d", ""));
+        SyncGraph.Run run = graph.start(Arrays.asList("a", "d"));
+        assertEquals(Arrays.asList("a", "d"), run.pollReady());
+
+        assertEquals(Arrays.asList("b", "c"), run.onFailed("a"));
+        assertEquals(Collections.emptyList(), run.pollReady());
+        assertFalse(run.isDone());
+
+        run.onSucceeded("d", 1);
+        assertTrue(run.isDone());
+    }
+
+    @Test
+    public void reportingTwiceIsIgnored() {
+        SyncGraph graph = new SyncGraph(dependsOn("a", "", "b", "a"));
+        SyncGraph.Run run = graph.start(Collections.singletonList("a"));
+        run.pollReady();
+        run.onSucceeded("a", 1);
+        run.onSucceeded("a", 1);
+        assertEquals(Collections.emptyList(), run.onFailed("a"));
+        assertEquals(Collections.singletonList("b"), run.pollReady());
+    }
+
+    @Test
+    public void independentListenersAreAllReady() {
+        SyncGraph graph = new SyncGraph(dependsOn("a", "", "b", "", "c", "a"));
+        assertFalse(graph.isEmpty());
+        SyncGraph.Run run = graph.start(Arrays.asList("b", "c"));
+        assertTrue(run.isIndependent());
+        assertEquals(Arrays.asList("b", "c"), run.pollReady());
+    }
+
+    @Test
+    public void criticalPathIsLongestChain() {
+        SyncGraph graph = new SyncGraph(dependsOn("a", "", "b", "a", "c", "", "d", "b,c"));
+        SyncGraph.Run run = graph.start(Arrays.asList("a", "c"));
+        run.pollReady();
+        run.onSucceeded("a", 10);
+        run.onSucceeded("c", 30);
+        run.pollReady();
+        run.onSucceeded("b", 5);
+        run.pollReady();
+        run.onSucceeded("d", 7);
+        // c -> d is longer than a -> b -> d.
+        assertEquals(37, run.getCriticalPath());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownDependencyThrows() {
+        new SyncGraph(dependsOn("a", "b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void selfDependencyThrows() {
+        new SyncGraph(dependsOn("a", "a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cycleThrows() {
+        new SyncGraph(dependsOn("a", "c", "b", "a", "c", "b"));
+    }
+
+    @Test
+    public void lenientLeavesOutInvalidDependencies() {
+        List<String> errors = new ArrayList<>();
+        SyncGraph graph = SyncGraph.lenient(dependsOn("a", "x", "b", "a,b", "c", "b", "d", ""), errors);
+        assertEquals(2, errors.size());
+
+        SyncGraph.Run run = graph.start(Collections.singletonList("a"));
+        assertEquals(Collections.singletonList("a"), run.pollReady());
+        run.onSucceeded("a", 1);
+        assertEquals(Collections.singletonList("b"), run.pollReady());
+        run.onSucceeded("b", 1);
+        assertEquals(Collections.singletonList("c"), run.pollReady());
+    }
+
+    @Test
+    public void lenientBreaksCycles() {
+        List<String> errors = new ArrayList<>();
+        SyncGraph graph = SyncGraph.lenient(dependsOn("a", "c", "b", "a", "c", "b"), errors);
+        assertEquals(1, errors.size());
+
+        SyncGraph.Run run = graph.start(Arrays.asList("a", "b", "c"));
+        List<String> synced = new ArrayList<>();
+        while (!run.isDone()) {
+            List<String> ready = run.pollReady();
+            assertEquals(1, ready.size());
+            synced.addAll(ready);
+            run.onSucceeded(ready.get(0), 1);
+        }
+        assertEquals(3, synced.size());
+    }
+
+    /**
+     * Builds the dependencies from pairs of a name and a comma separated list of the names it
+     * depends on.
+     */
+    private static Map<String, List<String>> dependsOn(String... pairs) {
+        Map<String, List<String>> dependsOn = new LinkedHashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            String names = pairs[i + 1];
+            dependsOn.put(pairs[i], names.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(names.split(",")));
+        }
+        return dependsOn;
+    }
+}
@@ -0,0 +1,142 @@
+package me.tatarka.timesync.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+    private static final long TICK = 1000;
+    private static final long NOW = 1420070400000L;
+
+    private TimerWheel wheel;
+    private List<String> expired;
+
+    @Before
+    public void setup() {
+        wheel = new TimerWheel(TICK);
+        expired = new ArrayList<>();
+    }
+
+    @Test
+    public void emptyWheelHasNoNextTime() {
+        assertTrue(wheel.isEmpty());
+        assertEquals(Long.MAX_VALUE, wheel.nextTime());
+    }
+
+    @Test
+    public void timerExpiresOnItsTick() {
+        wheel.schedule("a", NOW + 5 * TICK, NOW);
+        wheel.advance(NOW + 5 * TICK - 1, expired);
+        assertEquals(Collections.emptyList(), expired);
+        assertTrue(wheel.isScheduled("a"));
+
+        wheel.advance(NOW + 5 * TICK, expired);
+        assertEquals(Collections.singletonList("a"), expired);
+        assertFalse(wheel.isScheduled("a"));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void timerBetweenTicksIsRoundedUp() {
+        wheel.schedule("a", NOW + TICK + TICK / 2, NOW);
+        wheel.advance(NOW + 2 * TICK - 1, expired);
+        assertEquals(Collections.emptyList(), expired);
+
+        wheel.advance(NOW + 2 * TICK, expired);
+        assertEquals(Collections.singletonList("a"), expired);
+    }
+
+    @Test
+    public void timerInThePastExpiresRightAway() {
+        wheel.schedule("a", NOW - 10 * TICK, NOW);
+        assertTrue(wheel.nextTime() <= NOW);
+
+        wheel.advance(NOW, expired);
+        assertEquals(Collections.singletonList("a"), expired);
+    }
+
+    @Test
+    public void canceledTimerDoesNotExpire() {
+        wheel.schedule("a", NOW + TICK, NOW);
+        wheel.schedule("b", NOW + TICK, NOW);
+        wheel.cancel("a");
+        wheel.advance(NOW + TICK, expired);
+        assertEquals(Collections.singletonList("b"), expired);
+    }
+
+    @Test
+    public void schedulingAgainReplacesTimer() {
+        wheel.schedule("a", NOW + TICK, NOW);
+        wheel.schedule("a", NOW + 3 * TICK, NOW);
+        wheel.advance(NOW + 2 * TICK, expired);
+        assertEquals(Collections.emptyList(), expired);
+
+        wheel.advance(NOW + 3 * TICK, expired);
+        assertEquals(Collections.singletonList("a"), expired);
+    }
+
+    @Test
+    public void timersOnHigherLevelsExpireOnTime() {
+        // One per level, and one past the last level.
+        long[] delays = {10 * TICK, 1000 * TICK, 100000 * TICK, 10000000 * TICK, 20000000 * TICK};
+        for (int i = 0; i < delays.length; i++) {
+            wheel.schedule("t" + i, NOW + delays[i], NOW);
+        }
+        for (int i = 0; i < delays.length; i++) {
+            long time = advanceUntilExpired();
+            assertEquals(Collections.singletonList("t" + i), expired);
+            assertEquals(NOW + delays[i], time);
+            expired.clear();
+        }
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void everyTimerExpires() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String name = "t" + i;
+            names.add(name);
+            wheel.schedule(name, NOW + i * 37 * TICK, NOW);
+        }
+        wheel.advance(NOW + 1000 * 37 * TICK, expired);
+        assertEquals(new HashSet<>(names), new HashSet<>(expired));
+        assertEquals(names.size(), expired.size());
+    }
+
+    @Test
+    public void schedulingAfterIdleCatchesUp() {
+        wheel.schedule("a", NOW + TICK, NOW);
+        wheel.advance(NOW + TICK, expired);
+        expired.clear();
+
+        long later = NOW + 365L * 24 * 60 * 60 * 1000;
+        wheel.schedule("b", later + TICK, later);
+        assertTrue(wheel.nextTime() <= later + TICK);
+        wheel.advance(later + TICK - 1, expired);
+        assertEquals(Collections.emptyList(), expired);
+        wheel.advance(later + TICK, expired);
+        assertEquals(Collections.singletonList("b"), expired);
+    }
+
+    /**
+     * Advances to each {@link TimerWheel#nextTime()} until a timer expires, and returns the time it
+     * expired at.
+     */
+    private long advanceUntilExpired() {
+        long time = NOW;
+        while (expired.isEmpty()) {
+            time = Math.max(time, wheel.nextTime());
+            wheel.advance(time, expired);
+        }
+        return time;
+    }
+}
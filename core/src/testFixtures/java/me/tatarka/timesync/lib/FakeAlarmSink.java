@@ -0,0 +1,37 @@
+package me.tatarka.timesync.lib;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the alarms that are currently set.
+ */
+final class FakeAlarmSink implements AlarmSink {
+    final Map<String, Long> alarms = new HashMap<>();
+    // Zero if the batch alarm isn't set.
+    long batchTime;
+    List<String> batchNames;
+
+    @Override
+    public void set(String name, long time) {
+        alarms.put(name, time);
+    }
+
+    @Override
+    public void cancel(String name) {
+        alarms.remove(name);
+    }
+
+    @Override
+    public void setBatch(long time, List<String> names) {
+        batchTime = time;
+        batchNames = names;
+    }
+
+    @Override
+    public void cancelBatch() {
+        batchTime = 0;
+        batchNames = null;
+    }
+}
@@ -0,0 +1,34 @@
+package me.tatarka.timesync.lib;
+
+import java.util.TimeZone;
+
+/**
+ * A clock that only moves when told to, in UTC.
+ */
+final class FakeClock implements Clock {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private long time;
+
+    FakeClock(long time) {
+        this.time = time;
+    }
+
+    void set(long time) {
+        this.time = time;
+    }
+
+    void advance(long millis) {
+        time += millis;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return time;
+    }
+
+    @Override
+    public TimeZone getTimeZone() {
+        return UTC;
+    }
+}
@@ -0,0 +1,83 @@
+package me.tatarka.timesync.lib;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps scheduling state in memory, since the stores in lib need android.
+ */
+final class MemoryStateStore implements StateStore {
+    private final Map<String, Long> lastFailedTimeSpans = new HashMap<>();
+    private final Map<String, Integer> failedAttempts = new HashMap<>();
+    private final Map<String, Long> nextSyncTimes = new HashMap<>();
+    private final Map<String, String> validators = new HashMap<>();
+    private long seed;
+    private boolean powerConnected;
+
+    @Override
+    public long getSeed() {
+        return seed;
+    }
+
+    @Override
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public boolean isPowerConnected() {
+        return powerConnected;
+    }
+
+    @Override
+    public void setPowerConnected(boolean value) {
+        powerConnected = value;
+    }
+
+    @Override
+    public long getLastFailedTimeSpan(String name) {
+        Long timeSpan = lastFailedTimeSpans.get(name);
+        return timeSpan == null ? 0 : timeSpan;
+    }
+
+    @Override
+    public void setLastFailedTimeSpan(String name, long timeSpan) {
+        lastFailedTimeSpans.put(name, timeSpan);
+    }
+
+    @Override
+    public int getFailedAttempts(String name) {
+        Integer attempts = failedAttempts.get(name);
+        return attempts == null ? 0 : attempts;
+    }
+
+    @Override
+    public void setFailedAttempts(String name, int attempts) {
+        failedAttempts.put(name, attempts);
+    }
+
+    @Override
+    public long getNextSyncTime(String name) {
+        Long time = nextSyncTimes.get(name);
+        return time == null ? 0 : time;
+    }
+
+    @Override
+    public void setNextSyncTime(String name, long time) {
+        nextSyncTimes.put(name, time);
+    }
+
+    @Override
+    public String getValidator(String name) {
+        return validators.get(name);
+    }
+
+    @Override
+    public void setValidator(String name, String validator) {
+        validators.put(name, validator);
+    }
+
+    @Override
+    public void flush() {
+    }
+}
@@ -0,0 +1,54 @@
+package me.tatarka.timesync.lib;
+
+/**
+ * A listener configuration that can be changed after it is created.
+ */
+final class TestConfig implements ListenerConfig {
+    boolean enabled = true;
+    long every;
+    long range;
+    BackoffPolicy backoff = BackoffPolicy.EXPONENTIAL;
+    int maxAttempts;
+    boolean requiresNetwork = true;
+    String group;
+
+    TestConfig(long every, long range) {
+        this.every = every;
+        this.range = range;
+    }
+
+    @Override
+    public boolean enabled() {
+        return enabled;
+    }
+
+    @Override
+    public long every() {
+        return every;
+    }
+
+    @Override
+    public long range() {
+        return range;
+    }
+
+    @Override
+    public BackoffPolicy backoff() {
+        return backoff;
+    }
+
+    @Override
+    public int maxAttempts() {
+        return maxAttempts;
+    }
+
+    @Override
+    public boolean requiresNetwork() {
+        return requiresNetwork;
+    }
+
+    @Override
+    public String group() {
+        return group;
+    }
+}
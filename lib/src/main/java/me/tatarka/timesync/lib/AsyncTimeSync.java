@@ -0,0 +1,40 @@
+package me.tatarka.timesync.lib;
+
+import android.content.Context;
+
+/**
+ * A {@link TimeSync} whose sync doesn't block a thread. Instead of returning when the sync is done,
+ * {@link #onSyncAsync(Context, SyncContext, SyncCallback)} starts it, for example by enqueuing a
+ * request with an asynchronous http client, and reports how it went to the given callback. This
+ * lets any number of syncs that are waiting on the network be in flight at the same time,
+ * whatever the number of {@code threads}.
+ */
+public abstract class AsyncTimeSync extends TimeSync {
+    /**
+     * Called every time the system decides to sync. This is called on the service's thread, so it
+     * must return quickly and leave the actual work to run in the background. Exactly one of
+     * {@link SyncCallback#onSuccess(SyncResult)} or {@link SyncCallback#onFailure(Exception)} must
+     * be called once the sync finishes. The same {@code AsyncTimeSync} is never syncing more than
+     * once at a time.
+     *
+     * <p>If the {@code TimeSync} has a timeout and runs out of time, the sync counts as failed and
+     * the callback is ignored. Use {@link
+     * SyncContext#setOnCancelListener(SyncContext.OnCancelListener)} to cancel the request when
+     * that happens.</p>
+     *
+     * @param context  the context
+     * @param sync     the validator from the last sync
+     * @param callback to call once the sync finishes
+     * @throws Exception throwing is the same as calling {@link SyncCallback#onFailure(Exception)}
+     */
+    public abstract void onSyncAsync(Context context, SyncContext sync, SyncCallback callback) throws Exception;
+
+    /**
+     * Not called, an {@code AsyncTimeSync} syncs with {@link #onSyncAsync(Context, SyncContext,
+     * SyncCallback)} instead.
+     */
+    @Override
+    public final void onSync(Context context) throws Exception {
+        throw new UnsupportedOperationException("AsyncTimeSync {" + getName() + "} syncs with onSyncAsync()");
+    }
+}
@@ -0,0 +1,36 @@
+package me.tatarka.timesync.lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records values into a {@link Histogram} without locking, so that it can be updated from any
+ * thread.
+ */
+class AtomicHistogram {
+    private final AtomicLongArray counts = new AtomicLongArray(Histogram.BUCKET_COUNT);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(Histogram.bucketIndex(value));
+        sum.addAndGet(value);
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) break;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the recorded values. Values recorded while taking the snapshot may or
+     * may not be included.
+     */
+    Histogram snapshot() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return new Histogram(snapshot, sum.get(), max.get());
+    }
+}
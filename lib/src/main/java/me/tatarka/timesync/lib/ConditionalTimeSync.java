@@ -0,0 +1,34 @@
+package me.tatarka.timesync.lib;
+
+import android.content.Context;
+
+/**
+ * A {@link TimeSync} that is given the validator returned by its last successful sync, and may
+ * return a new one. Use this to only fetch what changed since then, for example by sending an
+ * ETag with the request. The validator is persisted along with the retry state.
+ */
+public abstract class ConditionalTimeSync extends TimeSync {
+    /**
+     * Called every time the system decides to sync, like {@link TimeSync#onSync(Context)}.
+     *
+     * @param context the context
+     * @param sync    the validator from the last sync
+     * @return what to do with the validator, null is the same as {@link SyncResult#notModified()}
+     * @throws Exception throw to notify of a sync failure
+     */
+    public abstract SyncResult onSync(Context context, SyncContext sync) throws Exception;
+
+    /**
+     * Not called, a {@code ConditionalTimeSync} syncs with {@link #onSync(Context, SyncContext)}
+     * instead.
+     */
+    @Override
+    public final void onSync(Context context) throws Exception {
+        throw new UnsupportedOperationException("ConditionalTimeSync {" + getName() + "} syncs with onSync(Context, SyncContext)");
+    }
+
+    @Override
+    final SyncResult sync(Context context, SyncContext sync) throws Exception {
+        return onSync(context, sync);
+    }
+}
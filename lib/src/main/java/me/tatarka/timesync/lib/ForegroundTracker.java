@@ -0,0 +1,91 @@
+package me.tatarka.timesync.lib;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+
+/**
+ * Keeps track of whether any of the app's activities are started. Once {@link TimeSyncService}
+ * asks for it with {@link #notifyService(boolean)}, it is told whenever this changes.
+ */
+class ForegroundTracker implements Application.ActivityLifecycleCallbacks {
+    private static ForegroundTracker sInstance;
+    private static volatile boolean sForeground;
+    private static volatile boolean sNotifyService;
+
+    private final Context context;
+    // Only accessed on the main thread.
+    private int startedActivities;
+
+    private ForegroundTracker(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Starts tracking the activities of the app. Must be called on the main thread, before the
+     * first activity starts.
+     */
+    static void register(Context context) {
+        if (sInstance != null) return;
+        Application application = (Application) context.getApplicationContext();
+        sInstance = new ForegroundTracker(application);
+        application.registerActivityLifecycleCallbacks(sInstance);
+    }
+
+    static boolean isForeground() {
+        return sForeground;
+    }
+
+    /**
+     * Sets if {@link TimeSyncService} should be told when the app moves between the foreground and
+     * the background.
+     */
+    static void notifyService(boolean notify) {
+        sNotifyService = notify;
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+        startedActivities++;
+        if (startedActivities == 1 && !sForeground) {
+            setForeground(true);
+        }
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+        startedActivities--;
+        // The activity is started again right away when it's recreated for a configuration change.
+        if (startedActivities == 0 && !activity.isChangingConfigurations()) {
+            setForeground(false);
+        }
+    }
+
+    private void setForeground(boolean foreground) {
+        sForeground = foreground;
+        if (sNotifyService) {
+            TimeSyncService.foregroundChanged(context, foreground);
+        }
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+    }
+}
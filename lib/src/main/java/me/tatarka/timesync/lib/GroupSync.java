@@ -0,0 +1,84 @@
+package me.tatarka.timesync.lib;
+
+/**
+ * One of the {@link TimeSync}s passed to {@link TimeSyncGroup#onSyncGroup(android.content.Context,
+ * java.util.List)}, which reports how its part of the sync went.
+ */
+public final class GroupSync {
+    private final TimeSync listener;
+    private final SyncContext context;
+    // Guarded by this.
+    private boolean reported;
+    private SyncResult result;
+    private Exception error;
+
+    GroupSync(TimeSync listener, SyncContext context) {
+        this.listener = listener;
+        this.context = context;
+    }
+
+    /**
+     * Returns the name of the {@code TimeSync}, the same as {@link TimeSync#getName()}.
+     */
+    public String getName() {
+        return listener.getName();
+    }
+
+    /**
+     * Returns the {@code TimeSync} itself.
+     */
+    public TimeSync getTimeSync() {
+        return listener;
+    }
+
+    /**
+     * Returns the validator and timeout of the {@code TimeSync}'s sync.
+     */
+    public SyncContext getSyncContext() {
+        return context;
+    }
+
+    /**
+     * Reports that the {@code TimeSync} synced successfully. Only the first report counts.
+     *
+     * @param result what to do with the validator, null is the same as {@link
+     *               SyncResult#notModified()}
+     */
+    public synchronized void succeeded(SyncResult result) {
+        if (reported) return;
+        reported = true;
+        this.result = result;
+    }
+
+    /**
+     * Reports that the {@code TimeSync} failed to sync, so that it is retried with its backoff
+     * policy. Only the first report counts.
+     *
+     * @param error why it failed
+     */
+    public synchronized void failed(Exception error) {
+        if (reported) return;
+        if (error == null) {
+            throw new NullPointerException("error == null");
+        }
+        reported = true;
+        this.error = error;
+    }
+
+    /**
+     * Fails the sync with the given error, unless it was already reported.
+     */
+    synchronized void failIfUnreported(Exception error) {
+        if (reported) return;
+        reported = true;
+        this.error = error;
+    }
+
+    synchronized SyncResult getResult() {
+        return result;
+    }
+
+    synchronized Exception getError() {
+        return error;
+    }
+}
@@ -0,0 +1,101 @@
+package me.tatarka.timesync.lib;
+
+/**
+ * An immutable snapshot of recorded values, bucketed in the same way as an HDR histogram. Values
+ * below 32 are exact, larger values are split into 16 buckets per power of two so that they are
+ * within about 6% of the actual value. Values larger than 2^41 are all counted in the last bucket.
+ */
+public final class Histogram {
+    private static final int LINEAR_BUCKETS = 32;
+    private static final int LINEAR_BITS = 5;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_BIT = 40;
+    static final int BUCKET_COUNT = LINEAR_BUCKETS + (MAX_BIT - LINEAR_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    Histogram(long[] counts, long sum, long max) {
+        this.counts = counts;
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    /**
+     * Returns the number of values recorded.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the largest value recorded, or 0 if nothing was recorded.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the mean of all recorded values, or 0 if nothing was recorded.
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the value at the given percentile, for example 99 for the 99th percentile. The value
+     * is the upper bound of the bucket the percentile falls in, but never more than {@link
+     * #getMax()}.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the value, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100, was: " + percentile);
+        }
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int bit = 63 - Long.numberOfLeadingZeros(value);
+        if (bit > MAX_BIT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) ((value >>> (bit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return LINEAR_BUCKETS + (bit - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        if (index == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        int bit = (index - LINEAR_BUCKETS) / SUB_BUCKETS + LINEAR_BITS;
+        long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long lowerBound = (1L << bit) | (subBucket << (bit - SUB_BUCKET_BITS));
+        return lowerBound + (1L << (bit - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,83 @@
+package me.tatarka.timesync.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a {@link TimerWheel} on a single thread of its own, for listeners that sync too often to go
+ * through the {@link android.app.AlarmManager} every time. Timers are lost when the process dies.
+ */
+class InProcessTimer {
+    // Timers may fire up to this late.
+    private static final long TICK_MILLIS = 100;
+
+    interface Callback {
+        /**
+         * Called on the timer thread with the names of the timers that have expired.
+         */
+        void onExpired(List<String> names);
+    }
+
+    private final TimerWheel wheel = new TimerWheel(TICK_MILLIS);
+    private final Callback callback;
+    private boolean stopped;
+
+    InProcessTimer(Callback callback) {
+        this.callback = callback;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, InProcessTimer.class.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void schedule(String name, long time) {
+        wheel.schedule(name, time, System.currentTimeMillis());
+        notify();
+    }
+
+    synchronized void cancel(String name) {
+        wheel.cancel(name);
+    }
+
+    synchronized boolean isScheduled(String name) {
+        return wheel.isScheduled(name);
+    }
+
+    synchronized boolean isEmpty() {
+        return wheel.isEmpty();
+    }
+
+    synchronized void shutdown() {
+        stopped = true;
+        notify();
+    }
+
+    private void loop() {
+        while (true) {
+            List<String> expired = new ArrayList<>();
+            synchronized (this) {
+                while (expired.isEmpty()) {
+                    if (stopped) return;
+                    long currentTime = System.currentTimeMillis();
+                    wheel.advance(currentTime, expired);
+                    if (!expired.isEmpty()) break;
+                    long nextTime = wheel.nextTime();
+                    try {
+                        if (nextTime == Long.MAX_VALUE) {
+                            wait();
+                        } else {
+                            wait(Math.max(1, nextTime - currentTime));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            callback.onExpired(expired);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package me.tatarka.timesync.lib;
+
+import android.content.Context;
+
+import java.util.List;
+
+/**
+ * Everything needed to schedule a {@link TimeSync} without creating it, its name and
+ * configuration. The {@code TimeSync} itself is only created once it actually has to sync or have
+ * its configuration edited, unless its defaults don't set {@code every}. It may then set it in
+ * {@link TimeSync#onCreate(Context)}, so it has to be created before it's scheduled, see {@link
+ * #needsCreate()}.
+ */
+class ListenerInfo {
+    final String name;
+    final TimeSync.Config config;
+    final SyncMetricsRecorder metrics;
+    // The validator passed to the next sync. It is loaded from the store on the service thread, and
+    // replaced on the sync's thread as soon as a sync returns a new one, so that a follow-up sync
+    // sees it before the service has handled the first one.
+    volatile String validator;
+    // Only accessed on the service thread.
+    boolean validatorLoaded;
+    private final TimeSyncRegistry.Factory factory;
+    private final List<TimeSync.Edit> defaults;
+    private TimeSync listener;
+
+    ListenerInfo(Context context, String name, TimeSyncRegistry.Factory factory, List<TimeSync.Edit> defaults) {
+        this.name = name;
+        this.factory = factory;
+        this.defaults = defaults;
+        metrics = TimeSyncMetrics.recorder(name);
+        config = new TimeSync.Config(context, name);
+        config.editDefault(defaults);
+    }
+
+    /**
+     * Returns true if the {@code TimeSync} has to be created before it's scheduled, since nothing
+     * but its {@link TimeSync#onCreate(Context)} sets how often it syncs.
+     */
+    boolean needsCreate() {
+        return !TimeSync.Edit.setsEvery(defaults);
+    }
+
+    /**
+     * Returns the {@code TimeSync}, creating it and calling {@link TimeSync#onCreate(Context)} if
+     * this is the first time it's needed.
+     */
+    synchronized TimeSync getListener(Context context) {
+        if (listener == null) {
+            TimeSync listener = factory.create();
+            listener.setConfig(config);
+            listener.onCreate(context);
+            listener.ensureOnCreate();
+            // Defaults from xml take precedence over ones set in onCreate().
+            listener.editDefault(defaults);
+            this.listener = listener;
+        }
+        return listener;
+    }
+}
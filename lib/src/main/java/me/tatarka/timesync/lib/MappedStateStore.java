@@ -0,0 +1,292 @@
+package me.tatarka.timesync.lib;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps scheduling state in a fixed-layout binary file that is memory-mapped, so that reads and
+ * writes are single loads and stores into the mapping instead of rewriting a whole preferences
+ * file. The file has a header followed by one fixed-size slot per listener.
+ *
+ * <pre>
+ * header: int magic, int version, long seed, int powerConnected, int slotCount, long reserved
+ * slot:   long nameHash, long lastFailedTimeSpan, long nextSyncTime, int failedAttempts,
+ *         int reserved
+ * </pre>
+ *
+ * Every value is an aligned long or int that is updated in place, so a value is never partially
+ * written. The mapping is shared with the kernel, so changes survive the process crashing even
+ * before {@link #flush()}. Flushing only forces them to disk, which is done when retry state
+ * changes.
+ *
+ * <p>When the file is first created, the state is migrated from {@link TimeSyncPreferences}. The
+ * old values are left in place, but are no longer read.</p>
+ *
+ * <p>Validators don't fit in a fixed-size slot, so they are kept in shared preferences like with
+ * {@code TimeSyncPreferences}. They are committed before the file is forced to disk, so after a
+ * crash in between the new validator may be kept along with the retry state from before the sync.
+ * That only means one extra retry.</p>
+ */
+class MappedStateStore implements StateStore {
+    static final String FILE_NAME = "me.tatarka.timesync.STATE";
+
+    private static final int MAGIC = 0x5453594e; // "TSYN"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int SEED_OFFSET = 8;
+    private static final int POWER_CONNECTED_OFFSET = 16;
+    private static final int SLOT_COUNT_OFFSET = 20;
+
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOT_NAME_HASH_OFFSET = 0;
+    private static final int SLOT_LAST_FAILED_TIME_SPAN_OFFSET = 8;
+    private static final int SLOT_NEXT_SYNC_TIME_OFFSET = 16;
+    private static final int SLOT_FAILED_ATTEMPTS_OFFSET = 24;
+
+    private static final int MIN_CAPACITY = 16;
+
+    // The file is mapped once per process, since the service is created again after almost every
+    // batch of intents and the mapping is never unmapped.
+    private static MappedStateStore sInstance;
+
+    private final WriteBehindPreferences prefs;
+    private final RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private final Map<String, Integer> slots = new HashMap<>();
+    // Slots found in the file, looked up by name hash the first time a name is used.
+    private final Map<Long, Integer> hashSlots = new HashMap<>();
+    private boolean durableChanges;
+    private boolean validatorChanges;
+
+    /**
+     * Opens the state file, creating it and migrating from shared preferences if it doesn't exist
+     * yet. The file is only opened the first time, later calls return the same store.
+     *
+     * @param context the context
+     * @param names   the names of all listeners, these are assigned slots up front
+     */
+    static synchronized MappedStateStore open(Context context, Collection<String> names) {
+        if (sInstance == null) {
+            sInstance = create(context, names);
+        } else {
+            for (String name : names) {
+                sInstance.findOrCreateSlot(name);
+            }
+        }
+        return sInstance;
+    }
+
+    private static MappedStateStore create(Context context, Collection<String> names) {
+        File stateFile = new File(context.getFilesDir(), FILE_NAME);
+        try {
+            MappedStateStore store = new MappedStateStore(WriteBehindPreferences.get(context), stateFile, names.size());
+            if (!store.isInitialized()) {
+                store.migrate(new TimeSyncPreferences(context), names);
+            }
+            for (String name : names) {
+                store.findOrCreateSlot(name);
+            }
+            return store;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open " + stateFile, e);
+        }
+    }
+
+    private MappedStateStore(WriteBehindPreferences prefs, File stateFile, int minSlots) throws IOException {
+        this.prefs = prefs;
+        file = new RandomAccessFile(stateFile, "rw");
+        boolean created = file.length() < HEADER_SIZE;
+        int fileCapacity = created ? 0 : (int) ((file.length() - HEADER_SIZE) / SLOT_SIZE);
+        map(Math.max(fileCapacity, capacityFor(minSlots)));
+
+        if (created || !isInitialized()) {
+            // New or unreadable, start over.
+            for (int i = 0; i < HEADER_SIZE; i += 4) {
+                buffer.putInt(i, 0);
+            }
+        }
+
+        int slotCount = getSlotCount();
+        for (int i = 0; i < slotCount; i++) {
+            long nameHash = buffer.getLong(slotOffset(i) + SLOT_NAME_HASH_OFFSET);
+            hashSlots.put(nameHash, i);
+        }
+    }
+
+    private boolean isInitialized() {
+        return buffer.getInt(MAGIC_OFFSET) == MAGIC && buffer.getInt(VERSION_OFFSET) == VERSION;
+    }
+
+    private void migrate(TimeSyncPreferences prefs, Collection<String> names) {
+        buffer.putLong(SEED_OFFSET, prefs.getSeed());
+        buffer.putInt(POWER_CONNECTED_OFFSET, prefs.isPowerConnected() ? 1 : 0);
+        for (String name : names) {
+            int slot = findOrCreateSlot(name);
+            buffer.putLong(slotOffset(slot) + SLOT_LAST_FAILED_TIME_SPAN_OFFSET, prefs.getLastFailedTimeSpan(name));
+            buffer.putLong(slotOffset(slot) + SLOT_NEXT_SYNC_TIME_OFFSET, prefs.getNextSyncTime(name));
+            buffer.putInt(slotOffset(slot) + SLOT_FAILED_ATTEMPTS_OFFSET, prefs.getFailedAttempts(name));
+        }
+        buffer.force();
+        // Only mark the file as valid once everything is migrated, so an interrupted migration is
+        // started over.
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.force();
+    }
+
+    @Override
+    public long getSeed() {
+        return buffer.getLong(SEED_OFFSET);
+    }
+
+    @Override
+    public void setSeed(long seed) {
+        buffer.putLong(SEED_OFFSET, seed);
+        durableChanges = true;
+    }
+
+    @Override
+    public boolean isPowerConnected() {
+        return buffer.getInt(POWER_CONNECTED_OFFSET) != 0;
+    }
+
+    @Override
+    public void setPowerConnected(boolean value) {
+        buffer.putInt(POWER_CONNECTED_OFFSET, value ? 1 : 0);
+    }
+
+    @Override
+    public long getLastFailedTimeSpan(String name) {
+        return buffer.getLong(slotOffset(findOrCreateSlot(name)) + SLOT_LAST_FAILED_TIME_SPAN_OFFSET);
+    }
+
+    @Override
+    public void setLastFailedTimeSpan(String name, long timeSpan) {
+        int offset = slotOffset(findOrCreateSlot(name)) + SLOT_LAST_FAILED_TIME_SPAN_OFFSET;
+        if (buffer.getLong(offset) == timeSpan) return;
+        buffer.putLong(offset, timeSpan);
+        durableChanges = true;
+    }
+
+    @Override
+    public int getFailedAttempts(String name) {
+        return buffer.getInt(slotOffset(findOrCreateSlot(name)) + SLOT_FAILED_ATTEMPTS_OFFSET);
+    }
+
+    @Override
+    public void setFailedAttempts(String name, int attempts) {
+        int offset = slotOffset(findOrCreateSlot(name)) + SLOT_FAILED_ATTEMPTS_OFFSET;
+        if (buffer.getInt(offset) == attempts) return;
+        buffer.putInt(offset, attempts);
+        durableChanges = true;
+    }
+
+    @Override
+    public long getNextSyncTime(String name) {
+        return buffer.getLong(slotOffset(findOrCreateSlot(name)) + SLOT_NEXT_SYNC_TIME_OFFSET);
+    }
+
+    @Override
+    public void setNextSyncTime(String name, long time) {
+        buffer.putLong(slotOffset(findOrCreateSlot(name)) + SLOT_NEXT_SYNC_TIME_OFFSET, time);
+    }
+
+    @Override
+    public String getValidator(String name) {
+        return TimeSyncPreferences.getValidator(prefs, name);
+    }
+
+    @Override
+    public void setValidator(String name, String validator) {
+        if (TimeSyncPreferences.setValidator(prefs, name, validator)) {
+            validatorChanges = true;
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (validatorChanges) {
+            validatorChanges = false;
+            prefs.commit();
+        }
+        if (durableChanges) {
+            durableChanges = false;
+            buffer.force();
+        }
+    }
+
+    private int findOrCreateSlot(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null) return slot;
+
+        long nameHash = hash(name);
+        slot = hashSlots.get(nameHash);
+        if (slot == null) {
+            slot = getSlotCount();
+            if (slot == capacity) {
+                try {
+                    map(capacity * 2);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to grow " + FILE_NAME, e);
+                }
+            }
+            int offset = slotOffset(slot);
+            buffer.putLong(offset + SLOT_LAST_FAILED_TIME_SPAN_OFFSET, 0);
+            buffer.putLong(offset + SLOT_NEXT_SYNC_TIME_OFFSET, 0);
+            buffer.putInt(offset + SLOT_FAILED_ATTEMPTS_OFFSET, 0);
+            buffer.putLong(offset + SLOT_NAME_HASH_OFFSET, nameHash);
+            // Only count the slot once it's fully written.
+            buffer.putInt(SLOT_COUNT_OFFSET, slot + 1);
+            hashSlots.put(nameHash, slot);
+        }
+        slots.put(name, slot);
+        return slot;
+    }
+
+    private int getSlotCount() {
+        return buffer.getInt(SLOT_COUNT_OFFSET);
+    }
+
+    private void map(int capacity) throws IOException {
+        this.capacity = capacity;
+        long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        if (file.length() < size) {
+            file.setLength(size);
+        }
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private static int capacityFor(int slots) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < slots) capacity *= 2;
+        return capacity;
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * 64-bit FNV-1a, so that names can be stored in a fixed size slot.
+     */
+    private static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
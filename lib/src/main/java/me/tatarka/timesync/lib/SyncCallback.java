@@ -0,0 +1,24 @@
+package me.tatarka.timesync.lib;
+
+/**
+ * Tells the library that an asynchronous sync has finished. Only the first call counts, and it may
+ * be made from any thread.
+ *
+ * @see AsyncTimeSync#onSyncAsync(android.content.Context, SyncContext, SyncCallback)
+ */
+public interface SyncCallback {
+    /**
+     * Called when the sync succeeded.
+     *
+     * @param result what to do with the validator, null is the same as {@link
+     *               SyncResult#notModified()}
+     */
+    void onSuccess(SyncResult result);
+
+    /**
+     * Called when the sync failed, so that it is retried with the backoff policy.
+     *
+     * @param error why it failed
+     */
+    void onFailure(Exception error);
+}
@@ -0,0 +1,149 @@
+package me.tatarka.timesync.lib;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * What a {@link TimeSync} is given when it syncs, along with the {@link android.content.Context}.
+ *
+ * <p>If the {@code TimeSync} has a timeout, the sync is canceled once it runs out. The thread the
+ * sync runs on is then interrupted, and {@link #isCanceled()} returns true. The sync counts as
+ * failed however it finishes, so it should stop as soon as it can. An {@link AsyncTimeSync} isn't
+ * running on a thread, so it is told with {@link #setOnCancelListener(OnCancelListener)}
+ * instead.</p>
+ *
+ * @see ConditionalTimeSync#onSync(android.content.Context, SyncContext)
+ */
+public final class SyncContext {
+    private final String validator;
+    private final long timeoutMillis;
+    // In System.nanoTime(), or 0 if there is no timeout or the sync hasn't started yet.
+    private volatile long deadline;
+    private volatile boolean canceled;
+    // Guarded by this.
+    private Thread thread;
+    private boolean finished;
+    private OnCancelListener onCancelListener;
+
+    SyncContext(String validator, long timeoutMillis) {
+        this.validator = validator;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns the validator returned by the last successful sync, or null if there is none. This
+     * could be an ETag or a last-modified time to send with a conditional request, or a cursor to
+     * fetch changes after.
+     */
+    public String getValidator() {
+        return validator;
+    }
+
+    /**
+     * Returns true once the sync has run out of time.
+     */
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * Throws if the sync has run out of time. Call this between steps of a long sync.
+     *
+     * @throws CancellationException if the sync was canceled
+     */
+    public void throwIfCanceled() {
+        if (canceled) {
+            throw new CancellationException("Sync timed out");
+        }
+    }
+
+    /**
+     * Returns how many milliseconds the sync has left before it is canceled, or {@link
+     * Long#MAX_VALUE} if it has no timeout. Use this for the timeouts of blocking calls, like
+     * socket reads, that can't be interrupted.
+     */
+    public long getTimeRemaining() {
+        long deadline = this.deadline;
+        if (deadline == 0) {
+            return timeoutMillis > 0 ? timeoutMillis : Long.MAX_VALUE;
+        }
+        return Math.max(0, (deadline - System.nanoTime()) / 1000000);
+    }
+
+    /**
+     * Sets a listener to call once the sync is canceled, from the service's thread. It is called
+     * right away if the sync was already canceled.
+     *
+     * @param listener the listener, or null to remove it
+     */
+    public void setOnCancelListener(OnCancelListener listener) {
+        synchronized (this) {
+            onCancelListener = listener;
+            if (!canceled || listener == null) return;
+        }
+        listener.onCancel();
+    }
+
+    /**
+     * Called when the sync starts running, which starts its time. The sync may have been waiting
+     * for a thread since the context was created, and that doesn't count.
+     *
+     * @param thread the thread the sync is running on, so that it can be interrupted, or null if
+     *               it isn't running on one
+     */
+    synchronized void start(Thread thread) {
+        if (timeoutMillis > 0) {
+            deadline = System.nanoTime() + timeoutMillis * 1000000;
+        }
+        this.thread = thread;
+        if (canceled && thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Called when the sync returns.
+     *
+     * @return false if it was canceled first, in which case it has already been handled as a
+     * timeout
+     */
+    synchronized boolean finish() {
+        thread = null;
+        if (canceled) return false;
+        finished = true;
+        return true;
+    }
+
+    /**
+     * Cancels the sync and interrupts its thread.
+     *
+     * @return false if it had already finished
+     */
+    boolean cancel() {
+        OnCancelListener listener;
+        synchronized (this) {
+            if (finished) return false;
+            canceled = true;
+            if (thread != null) {
+                thread.interrupt();
+            }
+            listener = onCancelListener;
+        }
+        // Called outside the lock, since it may call back into the context.
+        if (listener != null) {
+            listener.onCancel();
+        }
+        return true;
+    }
+
+    /**
+     * Listener for when a sync is canceled.
+     *
+     * @see #setOnCancelListener(OnCancelListener)
+     */
+    public interface OnCancelListener {
+        /**
+         * Called once the sync has run out of time.
+         */
+        void onCancel();
+    }
+}
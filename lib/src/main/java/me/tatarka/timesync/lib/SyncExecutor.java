@@ -0,0 +1,164 @@
+package me.tatarka.timesync.lib;
+
+import android.os.Process;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs syncs on a bounded pool of worker threads. Syncs for different listeners run in parallel,
+ * but a given listener is never run on more than one thread at a time. A listener that is already
+ * running has a single pending slot, so any number of syncs requested while it runs become one
+ * follow-up run once it finishes.
+ *
+ * <p>A task that is stuck can be abandoned. Its listener is then free to run again, and a thread
+ * is added to the pool until the stuck task returns.</p>
+ */
+class SyncExecutor {
+    private final ThreadPoolExecutor executor;
+    // The pending follow-up of each running listener, or null if there is none.
+    private final Map<String, Runnable> running = new HashMap<>();
+    // The task each listener is running. Guarded by running.
+    private final Map<String, Task> current = new HashMap<>();
+    private int threads;
+
+    SyncExecutor(int threads) {
+        this.threads = threads;
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new SyncThreadFactory());
+    }
+
+    /**
+     * Runs the given task for the given listener. If that listener is already running, the task
+     * is run once it finishes instead, unless there already is a follow-up task for it.
+     *
+     * @param name the name of the listener
+     * @param task the task to run
+     * @return true if the task will run, false if it was dropped in favor of an existing follow-up
+     */
+    boolean execute(String name, Runnable task) {
+        synchronized (running) {
+            if (running.containsKey(name)) {
+                if (running.get(name) != null) return false;
+                running.put(name, task);
+                return true;
+            }
+            running.put(name, null);
+        }
+        submit(name, task);
+        return true;
+    }
+
+    /**
+     * Stops waiting for the given listener's running task. Its follow-up, if any, is started
+     * right away on another thread.
+     */
+    void abandon(String name) {
+        synchronized (running) {
+            Task task = current.get(name);
+            if (task == null) return;
+            task.abandoned = true;
+            current.remove(name);
+            resize(threads + 1);
+        }
+        submitNext(name);
+    }
+
+    /**
+     * Stops accepting new tasks. Tasks that are already running are allowed to finish.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private void submit(String name, Runnable task) {
+        Task wrapper = new Task(name, task);
+        synchronized (running) {
+            current.put(name, wrapper);
+        }
+        executor.execute(wrapper);
+    }
+
+    private void submitNext(String name) {
+        Runnable next;
+        synchronized (running) {
+            next = running.get(name);
+            if (next == null) {
+                running.remove(name);
+            } else {
+                running.put(name, null);
+            }
+        }
+        if (next != null) {
+            submit(name, next);
+        }
+    }
+
+    // Guarded by running.
+    private void resize(int threads) {
+        // The core size may not be larger than the maximum size.
+        if (threads > this.threads) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+        this.threads = threads;
+    }
+
+    private final class Task implements Runnable {
+        final String name;
+        final Runnable task;
+        // Guarded by running.
+        boolean abandoned;
+
+        Task(String name, Runnable task) {
+            this.name = name;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                // Don't let an interrupt meant for this task leak into the next one.
+                Thread.interrupted();
+                boolean wasAbandoned;
+                synchronized (running) {
+                    wasAbandoned = abandoned;
+                    if (wasAbandoned) {
+                        resize(threads - 1);
+                    } else {
+                        // So that it can no longer be abandoned.
+                        current.remove(name);
+                    }
+                }
+                if (!wasAbandoned) {
+                    submitNext(name);
+                }
+            }
+        }
+    }
+
+    private static class SyncThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "TimeSync #" + count.getAndIncrement());
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package me.tatarka.timesync.lib;
+
+/**
+ * An immutable snapshot of how a {@link TimeSync} has been syncing since the process started.
+ *
+ * @see TimeSyncProxy#metrics()
+ * @see TimeSync#metrics()
+ */
+public final class SyncMetrics {
+    private final String name;
+    private final long successCount;
+    private final long errorCount;
+    private final long timeoutCount;
+    private final long noNetworkCount;
+    private final long disabledCount;
+    private final long deferredCount;
+    private final long wakeupCount;
+    private final long dependencySkippedCount;
+    private final Histogram syncLatency;
+    private final Histogram alarmLateness;
+
+    SyncMetrics(String name, long successCount, long errorCount, long timeoutCount, long noNetworkCount, long disabledCount, long deferredCount, long wakeupCount, long dependencySkippedCount, Histogram syncLatency, Histogram alarmLateness) {
+        this.name = name;
+        this.successCount = successCount;
+        this.errorCount = errorCount;
+        this.timeoutCount = timeoutCount;
+        this.noNetworkCount = noNetworkCount;
+        this.disabledCount = disabledCount;
+        this.deferredCount = deferredCount;
+        this.wakeupCount = wakeupCount;
+        this.dependencySkippedCount = dependencySkippedCount;
+        this.syncLatency = syncLatency;
+        this.alarmLateness = alarmLateness;
+    }
+
+    /**
+     * Returns the name of the {@code TimeSync}.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns how many times {@link TimeSync#onSync(android.content.Context)} returned
+     * successfully.
+     */
+    public long getSuccessCount() {
+        return successCount;
+    }
+
+    /**
+     * Returns how many times {@link TimeSync#onSync(android.content.Context)} threw an exception.
+     */
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Returns how many times a sync was canceled for taking longer than its timeout. These are not
+     * counted as errors.
+     */
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * Returns how many times a sync was skipped because there was no network connection.
+     */
+    public long getNoNetworkCount() {
+        return noNetworkCount;
+    }
+
+    /**
+     * Returns how many times a sync was skipped because the {@code TimeSync} was disabled.
+     */
+    public long getDisabledCount() {
+        return disabledCount;
+    }
+
+    /**
+     * Returns how many times a sync was deferred because the device didn't meet the {@code
+     * TimeSync}'s constraints, like being charging or on an unmetered network.
+     */
+    public long getDeferredCount() {
+        return deferredCount;
+    }
+
+    /**
+     * Returns how many alarms fired for the {@code TimeSync}. Explicit calls to {@link
+     * TimeSyncProxy#sync()} are not counted.
+     */
+    public long getWakeupCount() {
+        return wakeupCount;
+    }
+
+    /**
+     * Returns how many times a sync was skipped because a {@code TimeSync} it depends on failed or
+     * didn't sync.
+     */
+    public long getDependencySkippedCount() {
+        return dependencySkippedCount;
+    }
+
+    /**
+     * Returns how long {@link TimeSync#onSync(android.content.Context)} took, in microseconds. A
+     * sync that timed out is recorded with how long it ran before it was canceled.
+     */
+    public Histogram getSyncLatency() {
+        return syncLatency;
+    }
+
+    /**
+     * Returns how late alarms fired compared to when they were scheduled, in milliseconds.
+     */
+    public Histogram getAlarmLateness() {
+        return alarmLateness;
+    }
+}
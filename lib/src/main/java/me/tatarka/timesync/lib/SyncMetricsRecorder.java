@@ -0,0 +1,77 @@
+package me.tatarka.timesync.lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records {@link SyncMetrics} for a single {@code TimeSync}. All methods are lock-free and may be
+ * called from any thread.
+ */
+class SyncMetricsRecorder {
+    private final String name;
+    private final AtomicLong successCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong noNetworkCount = new AtomicLong();
+    private final AtomicLong disabledCount = new AtomicLong();
+    private final AtomicLong deferredCount = new AtomicLong();
+    private final AtomicLong wakeupCount = new AtomicLong();
+    private final AtomicLong dependencySkippedCount = new AtomicLong();
+    private final AtomicHistogram syncLatency = new AtomicHistogram();
+    private final AtomicHistogram alarmLateness = new AtomicHistogram();
+
+    SyncMetricsRecorder(String name) {
+        this.name = name;
+    }
+
+    void recordSuccess(long latencyMicros) {
+        successCount.incrementAndGet();
+        syncLatency.record(latencyMicros);
+    }
+
+    void recordError(long latencyMicros) {
+        errorCount.incrementAndGet();
+        syncLatency.record(latencyMicros);
+    }
+
+    void recordTimeout(long latencyMicros) {
+        timeoutCount.incrementAndGet();
+        syncLatency.record(latencyMicros);
+    }
+
+    void recordNoNetwork() {
+        noNetworkCount.incrementAndGet();
+    }
+
+    void recordDisabled() {
+        disabledCount.incrementAndGet();
+    }
+
+    void recordDependencySkipped() {
+        dependencySkippedCount.incrementAndGet();
+    }
+
+    void recordDeferred() {
+        deferredCount.incrementAndGet();
+    }
+
+    void recordWakeup(long latenessMillis) {
+        wakeupCount.incrementAndGet();
+        alarmLateness.record(latenessMillis);
+    }
+
+    SyncMetrics snapshot() {
+        return new SyncMetrics(
+                name,
+                successCount.get(),
+                errorCount.get(),
+                timeoutCount.get(),
+                noNetworkCount.get(),
+                disabledCount.get(),
+                deferredCount.get(),
+                wakeupCount.get(),
+                dependencySkippedCount.get(),
+                syncLatency.snapshot(),
+                alarmLateness.snapshot()
+        );
+    }
+}
@@ -0,0 +1,44 @@
+package me.tatarka.timesync.lib;
+
+/**
+ * The result of a successful sync, telling the library what to do with the sync's validator. A
+ * failed sync throws an exception instead, and leaves the validator as it was.
+ *
+ * @see ConditionalTimeSync#onSync(android.content.Context, SyncContext)
+ */
+public final class SyncResult {
+    private static final SyncResult NOT_MODIFIED = new SyncResult(false, null);
+
+    private final boolean updated;
+    private final String validator;
+
+    private SyncResult(boolean updated, String validator) {
+        this.updated = updated;
+        this.validator = validator;
+    }
+
+    /**
+     * Nothing changed since the last sync, so the validator is kept.
+     */
+    public static SyncResult notModified() {
+        return NOT_MODIFIED;
+    }
+
+    /**
+     * Replaces the validator with the given one, which is passed to the next sync in {@link
+     * SyncContext#getValidator()}.
+     *
+     * @param validator the new validator, or null to clear it
+     */
+    public static SyncResult updated(String validator) {
+        return new SyncResult(true, validator);
+    }
+
+    boolean isUpdated() {
+        return updated;
+    }
+
+    String getValidator() {
+        return validator;
+    }
+}
@@ -3,7 +3,12 @@ package me.tatarka.timesync.lib;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public abstract class TimeSync {
     public static final String META_DATA_NAME = "me.tatarka.timesync.TimeSync";
@@ -19,6 +24,23 @@ public abstract class TimeSync {
      * @param context the context
      */
     public static void start(Context context) {
+        ForegroundTracker.register(context);
+        TimeSyncService.start(context);
+    }
+
+    /**
+     * Starts the {@code TimeSync} service, taking the listeners from the given registry instead of
+     * from xml. This avoids parsing xml and creating listeners with reflection at startup. Since
+     * the registry has to be set before the service runs, this must be called in your {@link
+     * android.app.Application} subclass's {@link android.app.Application#onCreate()} method.
+     *
+     * @param context  the context
+     * @param registry the registry, normally {@code new GeneratedTimeSyncRegistry()}
+     * @see TimeSyncListener
+     */
+    public static void start(Context context, TimeSyncRegistry registry) {
+        TimeSyncParser.setRegistry(registry);
+        ForegroundTracker.register(context);
         TimeSyncService.start(context);
     }
 
@@ -34,15 +56,34 @@ public abstract class TimeSync {
         return new TimeSyncProxy(context, listener.getName());
     }
 
+    /**
+     * Returns a snapshot of how every {@code TimeSync} has been syncing since the process started.
+     *
+     * @return the metrics
+     * @see TimeSyncProxy#metrics()
+     */
+    public static TimeSyncMetrics metrics() {
+        return TimeSyncMetrics.snapshot();
+    }
+
     /**
      * Called when the {@code TimeSync} is created. This may be only called once across several
-     * syncs depending on how long your app stays in memory.
+     * syncs depending on how long your app stays in memory. A {@code TimeSync} that sets {@code
+     * every} in xml or with {@link TimeSyncListener} is only created once it first has to sync or
+     * have its configuration edited, so this is not necessarily called when your app starts. One
+     * that doesn't is created when the service starts, so that it can set it here.
      *
      * @param context the context
      */
     protected void onCreate(Context context) {
         onCreateSuperFlag = true;
-        config = new Config(context, getName());
+        if (config == null) {
+            config = new Config(context, getName());
+        }
+    }
+
+    final void setConfig(Config config) {
+        this.config = config;
     }
 
     final void ensureOnCreate() {
@@ -54,14 +95,27 @@ public abstract class TimeSync {
 
     /**
      * Called every time the system decides to sync. This is always called on a separate thread. You
-     * are also guaranteed to have a network connection at this point. If sync fails, you should
-     * throw an exception to notify {@code TimeSync} to retry properly.
+     * are also guaranteed to have a network connection at this point, unless {@code
+     * requiresNetwork} is false. If sync fails, you should throw an exception to notify {@code
+     * TimeSync} to retry properly.
+     *
+     * <p>To be given the validator from the last sync, extend {@link ConditionalTimeSync}
+     * instead. To sync without blocking a thread, extend {@link AsyncTimeSync}.</p>
      *
      * @param context the context
      * @throws Exception throw to notify of a sync failure
      */
     public abstract void onSync(Context context) throws Exception;
 
+    /**
+     * Runs the sync, this is what the service calls. Subclasses that sync differently override
+     * this.
+     */
+    SyncResult sync(Context context, SyncContext sync) throws Exception {
+        onSync(context);
+        return SyncResult.notModified();
+    }
+
     /**
      * Returns the current configuration of the {@code TimeSync}. This is not valid before {@link
      * #onCreate(android.content.Context)}. The returned configuration is read-only. To edit, use
@@ -103,25 +157,85 @@ public abstract class TimeSync {
      * @see #editDefault(TimeSync.Edit...)
      */
     public void edit(Iterable<Edit> edits) {
+        edit(edits, null);
+    }
+
+    /**
+     * Modify the current configuration. The new configuration takes effect immediately, but is
+     * written to disk in the background. Use the listener if you need to know when that has
+     * happened.
+     *
+     * @param edits    the edits
+     * @param listener notified on the main thread once the edits are written, may be null
+     * @throws IllegalArgumentException if the edits make the {@code TimeSync} depend on one that
+     *                                  doesn't exist, or on itself
+     * @see #edit(TimeSync.Edit...)
+     */
+    @SuppressWarnings("unchecked")
+    public void edit(Iterable<Edit> edits, OnEditCommittedListener listener) {
         if (config == null) {
             throw new IllegalStateException("Config has not been initialized. The config is initialized in super.onCreate().");
         }
 
-        SharedPreferences.Editor editor = config.prefs.edit();
+        // Check before anything is written, the service can't recover from a bad dependency.
+        for (Edit edit : edits) {
+            if (edit.type == Edit.Type.DEPENDS_ON) {
+                checkDependsOn((List<String>) edit.value);
+            }
+        }
+
         for (Edit edit : edits) {
             switch (edit.type) {
                 case ENABLED:
-                    editor.putBoolean(config.name + Config.CONFIG_ENABLED, (boolean) edit.value);
+                    config.prefs.putBoolean(config.enabledKey, (boolean) edit.value);
                     break;
                 case EVERY:
-                    editor.putLong(config.name + Config.CONFIG_EVERY, (long) edit.value);
+                    config.prefs.putLong(config.everyKey, (long) edit.value);
                     break;
                 case RANGE:
-                    editor.putLong(config.name + Config.CONFIG_RANGE, (long) edit.value);
+                    config.prefs.putLong(config.rangeKey, (long) edit.value);
+                    break;
+                case BACKOFF:
+                    config.prefs.putLong(config.backoffKey, ((BackoffPolicy) edit.value).id);
+                    break;
+                case MAX_ATTEMPTS:
+                    config.prefs.putLong(config.maxAttemptsKey, (int) edit.value);
+                    break;
+                case DEPENDS_ON:
+                    config.prefs.putString(config.dependsOnKey, Config.joinNames((List<String>) edit.value));
+                    break;
+                case TIMEOUT:
+                    config.prefs.putLong(config.timeoutKey, (long) edit.value);
+                    break;
+                case REQUIRES_NETWORK:
+                    config.prefs.putBoolean(config.requiresNetworkKey, (boolean) edit.value);
+                    break;
+                case REQUIRES_UNMETERED:
+                    config.prefs.putBoolean(config.requiresUnmeteredKey, (boolean) edit.value);
+                    break;
+                case REQUIRES_CHARGING:
+                    config.prefs.putBoolean(config.requiresChargingKey, (boolean) edit.value);
+                    break;
+                case MIN_BATTERY:
+                    config.prefs.putLong(config.minBatteryKey, (int) edit.value);
+                    break;
+                case GROUP:
+                    config.prefs.putString(config.groupKey, (String) edit.value);
                     break;
             }
         }
-        editor.commit();
+        config.prefs.apply(listener);
+        // Don't wait on the change listener, it only runs once the edits are written.
+        config.refresh();
+    }
+
+    private void checkDependsOn(List<String> dependsOn) throws IllegalArgumentException {
+        Map<String, List<String>> graph = new HashMap<>();
+        for (ListenerInfo listener : TimeSyncParser.parseListeners(config.context).values()) {
+            graph.put(listener.name, listener.config.dependsOn());
+        }
+        graph.put(getName(), dependsOn);
+        new SyncGraph(graph);
     }
 
     /**
@@ -130,6 +244,10 @@ public abstract class TimeSync {
      * #edit(TimeSync.Edit...)} will take precedence. This is equivalent to setting the
      * configuration options in xml.
      *
+     * <p>A {@code TimeSync} that sets {@code every} in xml is scheduled before it's created, so
+     * defaults set here only take effect once it first syncs or is edited. Set the options that
+     * affect scheduling in xml instead.</p>
+     *
      * @see #edit(TimeSync.Edit...)
      */
     public void editDefault(Edit... edits) {
@@ -142,28 +260,36 @@ public abstract class TimeSync {
      * #edit(TimeSync.Edit...)} will take precedence. This is equivalent to setting the
      * configuration options in xml.
      *
+     * <p>A {@code TimeSync} that sets {@code every} in xml is scheduled before it's created, so
+     * defaults set here only take effect once it first syncs or is edited. Set the options that
+     * affect scheduling in xml instead.</p>
+     *
      * @see #edit(TimeSync.Edit...)
      */
     public void editDefault(Iterable<Edit> edits) {
-        for (Edit edit : edits) {
-            switch (edit.type) {
-                case ENABLED:
-                    config.defaultEnabled = (boolean) edit.value;
-                    break;
-                case EVERY:
-                    config.defaultEvery = (long) edit.value;
-                    break;
-                case RANGE:
-                    config.defaultRange = (long) edit.value;
-                    break;
-            }
-        }
+        config().editDefault(edits);
+    }
+
+    /**
+     * Listener for when edits to the configuration have been written to disk.
+     *
+     * @see #edit(Iterable, TimeSync.OnEditCommittedListener)
+     */
+    public interface OnEditCommittedListener {
+        /**
+         * Called on the main thread once the edits have been written.
+         *
+         * @param success true if the edits were written successfully
+         */
+        void onEditCommitted(boolean success);
     }
 
     /**
-     * Class for configuring how and when a {@link TimeSync} will sync.
+     * Class for configuring how and when a {@link TimeSync} will sync. Values are read from an
+     * in-memory snapshot that is updated whenever the configuration is edited, so reading them is
+     * cheap and safe from any thread.
      */
-    public static final class Config {
+    public static final class Config implements ListenerConfig {
         public static final long SECONDS = 1000;
         public static final long MINUTES = SECONDS * 60;
         public static final long HOURS = MINUTES * 60;
@@ -173,32 +299,276 @@ public abstract class TimeSync {
         public static final boolean DEFAULT_ENABLED = true;
         public static final long DEFAULT_EVERY = 0;
         public static final long DEFAULT_RANGE = 5 * MINUTES;
+        public static final BackoffPolicy DEFAULT_BACKOFF = BackoffPolicy.EXPONENTIAL;
+        public static final int DEFAULT_MAX_ATTEMPTS = 0;
+        public static final long DEFAULT_TIMEOUT = 0;
+        public static final boolean DEFAULT_REQUIRES_NETWORK = true;
+        public static final boolean DEFAULT_REQUIRES_UNMETERED = false;
+        public static final boolean DEFAULT_REQUIRES_CHARGING = false;
+        public static final int DEFAULT_MIN_BATTERY = 0;
+        public static final String DEFAULT_GROUP = null;
 
         private static final String CONFIG_ENABLED = "config_enabled";
         private static final String CONFIG_EVERY = "config_every";
         private static final String CONFIG_RANGE = "config_range";
-
-        private String name;
+        private static final String CONFIG_BACKOFF = "config_backoff";
+        private static final String CONFIG_MAX_ATTEMPTS = "config_max_attempts";
+        private static final String CONFIG_DEPENDS_ON = "config_depends_on";
+        private static final String CONFIG_TIMEOUT = "config_timeout";
+        private static final String CONFIG_REQUIRES_NETWORK = "config_requires_network";
+        private static final String CONFIG_REQUIRES_UNMETERED = "config_requires_unmetered";
+        private static final String CONFIG_REQUIRES_CHARGING = "config_requires_charging";
+        private static final String CONFIG_MIN_BATTERY = "config_min_battery";
+        private static final String CONFIG_GROUP = "config_group";
+
+        private final String enabledKey;
+        private final String everyKey;
+        private final String rangeKey;
+        private final String backoffKey;
+        private final String maxAttemptsKey;
+        private final String dependsOnKey;
+        private final String timeoutKey;
+        private final String requiresNetworkKey;
+        private final String requiresUnmeteredKey;
+        private final String requiresChargingKey;
+        private final String minBatteryKey;
+        private final String groupKey;
         private boolean defaultEnabled = DEFAULT_ENABLED;
         private long defaultEvery = DEFAULT_EVERY;
         private long defaultRange = DEFAULT_RANGE;
-        private SharedPreferences prefs;
-
-        private Config(Context context, String name) {
-            this.name = name;
-            prefs = context.getSharedPreferences(TimeSyncPreferences.NAME, Context.MODE_PRIVATE);
+        private BackoffPolicy defaultBackoff = DEFAULT_BACKOFF;
+        private int defaultMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+        private List<String> defaultDependsOn = Collections.emptyList();
+        private long defaultTimeout = DEFAULT_TIMEOUT;
+        private boolean defaultRequiresNetwork = DEFAULT_REQUIRES_NETWORK;
+        private boolean defaultRequiresUnmetered = DEFAULT_REQUIRES_UNMETERED;
+        private boolean defaultRequiresCharging = DEFAULT_REQUIRES_CHARGING;
+        private int defaultMinBattery = DEFAULT_MIN_BATTERY;
+        private String defaultGroup = DEFAULT_GROUP;
+        private final Context context;
+        private final WriteBehindPreferences prefs;
+        private volatile Snapshot snapshot;
+
+        // SharedPreferences only keeps a weak reference to this, so it must be held here.
+        private final SharedPreferences.OnSharedPreferenceChangeListener changeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                if (key == null || key.equals(enabledKey) || key.equals(everyKey) || key.equals(rangeKey)
+                        || key.equals(backoffKey) || key.equals(maxAttemptsKey) || key.equals(dependsOnKey)
+                        || key.equals(timeoutKey) || key.equals(requiresNetworkKey) || key.equals(requiresUnmeteredKey)
+                        || key.equals(requiresChargingKey) || key.equals(minBatteryKey) || key.equals(groupKey)) {
+                    refresh();
+                }
+            }
+        };
+
+        Config(Context context, String name) {
+            enabledKey = name + CONFIG_ENABLED;
+            everyKey = name + CONFIG_EVERY;
+            rangeKey = name + CONFIG_RANGE;
+            backoffKey = name + CONFIG_BACKOFF;
+            maxAttemptsKey = name + CONFIG_MAX_ATTEMPTS;
+            dependsOnKey = name + CONFIG_DEPENDS_ON;
+            timeoutKey = name + CONFIG_TIMEOUT;
+            requiresNetworkKey = name + CONFIG_REQUIRES_NETWORK;
+            requiresUnmeteredKey = name + CONFIG_REQUIRES_UNMETERED;
+            requiresChargingKey = name + CONFIG_REQUIRES_CHARGING;
+            minBatteryKey = name + CONFIG_MIN_BATTERY;
+            groupKey = name + CONFIG_GROUP;
+            Context appContext = context.getApplicationContext();
+            this.context = appContext != null ? appContext : context;
+            prefs = WriteBehindPreferences.get(context);
+            prefs.getSharedPreferences().registerOnSharedPreferenceChangeListener(changeListener);
+            refresh();
         }
 
         public boolean enabled() {
-            return prefs.getBoolean(name + CONFIG_ENABLED, defaultEnabled);
+            return snapshot.enabled;
         }
 
         public long every() {
-            return prefs.getLong(name + CONFIG_EVERY, defaultEvery);
+            return snapshot.every;
         }
 
         public long range() {
-            return prefs.getLong(name + CONFIG_RANGE, defaultRange);
+            return snapshot.range;
+        }
+
+        public BackoffPolicy backoff() {
+            return snapshot.backoff;
+        }
+
+        public int maxAttempts() {
+            return snapshot.maxAttempts;
+        }
+
+        /**
+         * Returns the names of the {@code TimeSync}s that have to sync successfully before this
+         * one does.
+         */
+        public List<String> dependsOn() {
+            return snapshot.dependsOn;
+        }
+
+        /**
+         * Returns how long a sync may take in milliseconds before it is canceled, or 0 if there is
+         * no limit.
+         */
+        public long timeout() {
+            return snapshot.timeout;
+        }
+
+        @Override
+        public boolean requiresNetwork() {
+            return snapshot.requiresNetwork;
+        }
+
+        /**
+         * Returns if the {@code TimeSync} only syncs on a network that isn't metered, like wifi.
+         */
+        public boolean requiresUnmetered() {
+            return snapshot.requiresUnmetered;
+        }
+
+        /**
+         * Returns if the {@code TimeSync} only syncs while the device is charging.
+         */
+        public boolean requiresCharging() {
+            return snapshot.requiresCharging;
+        }
+
+        /**
+         * Returns the battery level in percent that the device needs to have for the {@code
+         * TimeSync} to sync, or 0 if it syncs on any level.
+         */
+        public int minBattery() {
+            return snapshot.minBattery;
+        }
+
+        /**
+         * Returns the class name of the {@link TimeSyncGroup} that syncs the {@code TimeSync}
+         * together with the rest of its group, or null if it syncs on its own.
+         */
+        @Override
+        public String group() {
+            return snapshot.group;
+        }
+
+        @SuppressWarnings("unchecked")
+        void editDefault(Iterable<Edit> edits) {
+            synchronized (this) {
+                for (Edit edit : edits) {
+                    switch (edit.type) {
+                        case ENABLED:
+                            defaultEnabled = (boolean) edit.value;
+                            break;
+                        case EVERY:
+                            defaultEvery = (long) edit.value;
+                            break;
+                        case RANGE:
+                            defaultRange = (long) edit.value;
+                            break;
+                        case BACKOFF:
+                            defaultBackoff = (BackoffPolicy) edit.value;
+                            break;
+                        case MAX_ATTEMPTS:
+                            defaultMaxAttempts = (int) edit.value;
+                            break;
+                        case DEPENDS_ON:
+                            defaultDependsOn = (List<String>) edit.value;
+                            break;
+                        case TIMEOUT:
+                            defaultTimeout = (long) edit.value;
+                            break;
+                        case REQUIRES_NETWORK:
+                            defaultRequiresNetwork = (boolean) edit.value;
+                            break;
+                        case REQUIRES_UNMETERED:
+                            defaultRequiresUnmetered = (boolean) edit.value;
+                            break;
+                        case REQUIRES_CHARGING:
+                            defaultRequiresCharging = (boolean) edit.value;
+                            break;
+                        case MIN_BATTERY:
+                            defaultMinBattery = (int) edit.value;
+                            break;
+                        case GROUP:
+                            defaultGroup = (String) edit.value;
+                            break;
+                    }
+                }
+            }
+            refresh();
+        }
+
+        private synchronized void refresh() {
+            snapshot = new Snapshot(
+                    prefs.getBoolean(enabledKey, defaultEnabled),
+                    prefs.getLong(everyKey, defaultEvery),
+                    prefs.getLong(rangeKey, defaultRange),
+                    BackoffPolicy.fromId((int) prefs.getLong(backoffKey, defaultBackoff.id)),
+                    (int) prefs.getLong(maxAttemptsKey, defaultMaxAttempts),
+                    parseNames(prefs.getString(dependsOnKey, null), defaultDependsOn),
+                    prefs.getLong(timeoutKey, defaultTimeout),
+                    prefs.getBoolean(requiresNetworkKey, defaultRequiresNetwork),
+                    prefs.getBoolean(requiresUnmeteredKey, defaultRequiresUnmetered),
+                    prefs.getBoolean(requiresChargingKey, defaultRequiresCharging),
+                    (int) prefs.getLong(minBatteryKey, defaultMinBattery),
+                    parseGroup(prefs.getString(groupKey, null), defaultGroup)
+            );
+        }
+
+        static String joinNames(List<String> names) {
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < names.size(); i++) {
+                if (i > 0) result.append(',');
+                result.append(names.get(i));
+            }
+            return result.toString();
+        }
+
+        private static List<String> parseNames(String input, List<String> defValue) {
+            if (input == null) return defValue;
+            if (input.isEmpty()) return Collections.emptyList();
+            return Collections.unmodifiableList(Arrays.asList(input.split(",")));
+        }
+
+        private static String parseGroup(String input, String defValue) {
+            String group = input != null ? input : defValue;
+            // No group is stored as empty, since removing the key would fall back to the default.
+            return group == null || group.isEmpty() ? null : group;
+        }
+
+        private static final class Snapshot {
+            final boolean enabled;
+            final long every;
+            final long range;
+            final BackoffPolicy backoff;
+            final int maxAttempts;
+            final List<String> dependsOn;
+            final long timeout;
+            final boolean requiresNetwork;
+            final boolean requiresUnmetered;
+            final boolean requiresCharging;
+            final int minBattery;
+            final String group;
+
+            Snapshot(boolean enabled, long every, long range, BackoffPolicy backoff, int maxAttempts, List<String> dependsOn, long timeout,
+                     boolean requiresNetwork, boolean requiresUnmetered, boolean requiresCharging, int minBattery,
+                     String group) {
+                this.enabled = enabled;
+                this.every = every;
+                this.range = range;
+                this.backoff = backoff;
+                this.maxAttempts = maxAttempts;
+                this.dependsOn = dependsOn;
+                this.timeout = timeout;
+                this.requiresNetwork = requiresNetwork;
+                this.requiresUnmetered = requiresUnmetered;
+                this.requiresCharging = requiresCharging;
+                this.minBattery = minBattery;
+                this.group = group;
+            }
         }
     }
 
@@ -207,7 +577,8 @@ public abstract class TimeSync {
      */
     public static class Edit {
         private static enum Type {
-            ENABLED, EVERY, RANGE
+            ENABLED, EVERY, RANGE, BACKOFF, MAX_ATTEMPTS, DEPENDS_ON, TIMEOUT, REQUIRES_NETWORK, REQUIRES_UNMETERED,
+            REQUIRES_CHARGING, MIN_BATTERY, GROUP
         }
 
         private Type type;
@@ -218,6 +589,16 @@ public abstract class TimeSync {
             this.value = value;
         }
 
+        /**
+         * Returns true if any of the given edits sets {@code every}.
+         */
+        static boolean setsEvery(Iterable<Edit> edits) {
+            for (Edit edit : edits) {
+                if (edit.type == Type.EVERY) return true;
+            }
+            return false;
+        }
+
         /**
          * Sets if the {@link TimeSync} is enabled. If not, it will not sync, even when called
          * explicitly.
@@ -309,5 +690,175 @@ public abstract class TimeSync {
         public static Edit range(long timeSpan, long timeSpanUnit) {
             return new Edit(Type.RANGE, timeSpan * timeSpanUnit);
         }
+
+        /**
+         * Sets how long to wait before retrying a failed sync. The default is {@link
+         * BackoffPolicy#EXPONENTIAL}.
+         *
+         * @param policy the backoff policy
+         * @return the edit for chaining
+         * @see BackoffPolicy
+         */
+        public static Edit backoff(BackoffPolicy policy) {
+            if (policy == null) {
+                throw new IllegalArgumentException("policy must not be null");
+            }
+            return new Edit(Type.BACKOFF, policy);
+        }
+
+        /**
+         * Sets how many times in a row a sync may fail before it stops being retried. The next
+         * sync then happens at the regularly scheduled time. The default is 0, which retries until
+         * the sync succeeds.
+         *
+         * @param attempts the maximum number of attempts, including the first one
+         * @return the edit for chaining
+         */
+        public static Edit maxAttempts(int attempts) {
+            if (attempts < 0) {
+                throw new IllegalArgumentException("attempts must not be negative, was: " + attempts);
+            }
+            return new Edit(Type.MAX_ATTEMPTS, attempts);
+        }
+
+        /**
+         * Sets how long a sync may take in milliseconds. Once it runs out, the sync is canceled,
+         * see {@link SyncContext}, and counts as failed so that it is retried with the backoff
+         * policy. A sync that ignores this is no longer waited for, and other syncs run without
+         * it. The default is 0, which doesn't limit how long a sync takes.
+         *
+         * @param timeSpan the time span in milliseconds
+         * @return the edit for chaining
+         */
+        public static Edit timeout(long timeSpan) {
+            if (timeSpan < 0) {
+                throw new IllegalArgumentException("timeout must not be negative, was: " + timeSpan);
+            }
+            return new Edit(Type.TIMEOUT, timeSpan);
+        }
+
+        /**
+         * Sets how long a sync may take. This is a convince method that allows you to specify a
+         * unit for easy readability.
+         *
+         * @param timeSpan     the time span, in a unit-dependent manner
+         * @param timeSpanUnit the unit, can be one of {@link Config#SECONDS}, {@link
+         *                     Config#MINUTES}, {@link Config#HOURS}, {@link Config#DAYS}, {@link
+         *                     Config#WEEKS}
+         * @return the edit for chaining
+         * @see #timeout(long)
+         */
+        public static Edit timeout(long timeSpan, long timeSpanUnit) {
+            return timeout(timeSpan * timeSpanUnit);
+        }
+
+        /**
+         * Sets if the {@link TimeSync} needs a network connection to sync. A {@code TimeSync} that
+         * only does local work can sync without one, and isn't held back when others are waiting
+         * for the network. The default is true.
+         *
+         * @param value true if it needs a network connection
+         * @return the edit for chaining
+         */
+        public static Edit requiresNetwork(boolean value) {
+            return new Edit(Type.REQUIRES_NETWORK, value);
+        }
+
+        /**
+         * Sets if the {@link TimeSync} only syncs on a network that isn't metered, like wifi. While
+         * the network is metered, its syncs are deferred until it isn't. The default is false.
+         *
+         * @param value true to only sync on an unmetered network
+         * @return the edit for chaining
+         */
+        public static Edit requiresUnmetered(boolean value) {
+            return new Edit(Type.REQUIRES_UNMETERED, value);
+        }
+
+        /**
+         * Sets if the {@link TimeSync} only syncs while the device is charging. While it isn't,
+         * its syncs are deferred until it is. The default is false.
+         *
+         * @param value true to only sync while charging
+         * @return the edit for chaining
+         */
+        public static Edit requiresCharging(boolean value) {
+            return new Edit(Type.REQUIRES_CHARGING, value);
+        }
+
+        /**
+         * Sets the battery level the device needs to have for the {@link TimeSync} to sync. Below
+         * it, syncs are deferred unless the device is charging. The default is 0, which syncs on
+         * any level.
+         *
+         * @param percent the battery level in percent, from 0 to 100
+         * @return the edit for chaining
+         */
+        public static Edit minBattery(int percent) {
+            if (percent < 0 || percent > 100) {
+                throw new IllegalArgumentException("minBattery must be between 0 and 100, was: " + percent);
+            }
+            return new Edit(Type.MIN_BATTERY, percent);
+        }
+
+        /**
+         * Sets the {@link TimeSync}s that have to sync successfully before this one does. Whenever
+         * one of them syncs, this one syncs right after it, and is skipped if it failed. Syncs that
+         * don't depend on each other run in parallel if there is more than one thread. This
+         * replaces any dependencies set before, and must not form a cycle.
+         *
+         * @param listeners the {@code TimeSync}s this one depends on
+         * @return the edit for chaining
+         */
+        @SafeVarargs
+        public static Edit dependsOn(Class<? extends TimeSync>... listeners) {
+            String[] names = new String[listeners.length];
+            for (int i = 0; i < listeners.length; i++) {
+                names[i] = listeners[i].getName();
+            }
+            return dependsOn(names);
+        }
+
+        /**
+         * Sets the {@link TimeSync}s that have to sync successfully before this one does, by
+         * name.
+         *
+         * @param names the class names of the {@code TimeSync}s this one depends on
+         * @return the edit for chaining
+         * @see #dependsOn(Class[])
+         */
+        public static Edit dependsOn(String... names) {
+            List<String> list = new ArrayList<>(names.length);
+            for (String name : names) {
+                if (name == null || name.isEmpty() || name.indexOf(',') >= 0) {
+                    throw new IllegalArgumentException("Invalid TimeSync name: " + name);
+                }
+                list.add(name);
+            }
+            return new Edit(Type.DEPENDS_ON, Collections.unmodifiableList(list));
+        }
+
+        /**
+         * Sets the {@link TimeSyncGroup} that syncs the {@link TimeSync} together with the other
+         * {@code TimeSync}s in it that are due at the same time, for example with a single request.
+         * Each one keeps its own schedule and backoff. The default is none.
+         *
+         * @param group the group, or null to sync on its own
+         * @return the edit for chaining
+         */
+        public static Edit group(Class<? extends TimeSyncGroup> group) {
+            return group(group == null ? null : group.getName());
+        }
+
+        /**
+         * Sets the {@link TimeSyncGroup} of the {@link TimeSync} by name.
+         *
+         * @param group the class name of the group, or null to sync on its own
+         * @return the edit for chaining
+         * @see #group(Class)
+         */
+        public static Edit group(String group) {
+            return new Edit(Type.GROUP, group == null ? "" : group);
+        }
     }
 }
@@ -0,0 +1,40 @@
+package me.tatarka.timesync.lib;
+
+import android.content.Context;
+
+import java.util.List;
+
+/**
+ * Syncs several {@link TimeSync}s at once, for example with a single request to a backend they
+ * share. A {@code TimeSync} is added to a group with the {@code group} attribute, and from then on
+ * is synced by its group instead of by its own {@link TimeSync#onSync(Context)}.
+ *
+ * <p>Every {@code TimeSync} in a group keeps its own configuration, but the ones that sync at the
+ * same {@code every} and {@code range} are scheduled on one shared alarm. When it fires, all of
+ * them that are due are passed to {@link #onSyncGroup(Context, List)} together. Each one still
+ * succeeds or fails on its own, so one that failed is retried with its own backoff.</p>
+ *
+ * <p>A group is created with its no-arg constructor the first time one of its {@code TimeSync}s
+ * syncs, and is only ever syncing once at a time.</p>
+ */
+public abstract class TimeSyncGroup {
+    /**
+     * Called when the group is created.
+     *
+     * @param context the context
+     */
+    protected void onCreate(Context context) {
+    }
+
+    /**
+     * Called every time some of the {@code TimeSync}s in the group are due. This is called on a
+     * separate thread, just like {@link TimeSync#onSync(Context)}. Report how each one went with
+     * {@link GroupSync#succeeded(SyncResult)} or {@link GroupSync#failed(Exception)}. The ones that
+     * aren't reported succeed once this returns, or fail if it throws.
+     *
+     * @param context the context
+     * @param syncs   the {@code TimeSync}s to sync, in the order they are declared
+     * @throws Exception throw to fail every sync that wasn't reported
+     */
+    public abstract void onSyncGroup(Context context, List<GroupSync> syncs) throws Exception;
+}
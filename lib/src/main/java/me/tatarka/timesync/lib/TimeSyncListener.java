@@ -0,0 +1,85 @@
+package me.tatarka.timesync.lib;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Registers a {@link TimeSync} at compile time, as an alternative to declaring it in xml. The
+ * annotation processor generates a {@link TimeSyncRegistry} named {@code
+ * GeneratedTimeSyncRegistry} containing every annotated class, which you pass to {@link
+ * TimeSync#start(android.content.Context, TimeSyncRegistry)}. The values are the same as the
+ * attributes in xml, and are parsed at compile time.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface TimeSyncListener {
+    /**
+     * If the {@code TimeSync} is enabled. The default is true.
+     */
+    boolean enabled() default TimeSync.Config.DEFAULT_ENABLED;
+
+    /**
+     * How often to sync, for example "10 minutes". The default is 0, which disables periodic
+     * syncing.
+     */
+    String every() default "";
+
+    /**
+     * The range of the random offset added to syncs, for example "5 minutes". The default is 5
+     * minutes.
+     */
+    String range() default "";
+
+    /**
+     * How long to wait before retrying a failed sync, one of "exponential", "full_jitter" or
+     * "decorrelated_jitter". The default is "exponential".
+     */
+    String backoff() default "";
+
+    /**
+     * How many times in a row a sync may fail before it stops being retried. The default is 0,
+     * which retries until the sync succeeds.
+     */
+    int maxAttempts() default TimeSync.Config.DEFAULT_MAX_ATTEMPTS;
+
+    /**
+     * How long a sync may take before it is canceled, for example "30 seconds". The default is 0,
+     * which doesn't limit how long a sync takes.
+     */
+    String timeout() default "";
+
+    /**
+     * If the {@code TimeSync} needs a network connection to sync. The default is true.
+     */
+    boolean requiresNetwork() default TimeSync.Config.DEFAULT_REQUIRES_NETWORK;
+
+    /**
+     * If the {@code TimeSync} only syncs on a network that isn't metered. The default is false.
+     */
+    boolean requiresUnmetered() default TimeSync.Config.DEFAULT_REQUIRES_UNMETERED;
+
+    /**
+     * If the {@code TimeSync} only syncs while the device is charging. The default is false.
+     */
+    boolean requiresCharging() default TimeSync.Config.DEFAULT_REQUIRES_CHARGING;
+
+    /**
+     * The battery level in percent the device needs to have for the {@code TimeSync} to sync. The
+     * default is 0, which syncs on any level.
+     */
+    int minBattery() default TimeSync.Config.DEFAULT_MIN_BATTERY;
+
+    /**
+     * The {@code TimeSync}s that have to sync successfully before this one does. The default is
+     * none.
+     */
+    Class<? extends TimeSync>[] dependsOn() default {};
+
+    /**
+     * The {@link TimeSyncGroup} that syncs the {@code TimeSync} together with the rest of its
+     * group. The default, {@code TimeSyncGroup} itself, is no group.
+     */
+    Class<? extends TimeSyncGroup> group() default TimeSyncGroup.class;
+}
@@ -0,0 +1,85 @@
+package me.tatarka.timesync.lib;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An immutable snapshot of the {@link SyncMetrics} of every {@link TimeSync}, along with how many
+ * times the app was woken up by an alarm. Metrics are only kept in memory, so they start over when
+ * the process is restarted.
+ *
+ * @see TimeSync#metrics()
+ */
+public final class TimeSyncMetrics {
+    private static final ConcurrentMap<String, SyncMetricsRecorder> sRecorders = new ConcurrentHashMap<>();
+    private static final AtomicLong sWakeupCount = new AtomicLong();
+    private static final AtomicHistogram sPipelineLatency = new AtomicHistogram();
+
+    private final long wakeupCount;
+    private final Histogram pipelineLatency;
+    private final Map<String, SyncMetrics> metrics;
+
+    private TimeSyncMetrics(long wakeupCount, Histogram pipelineLatency, Map<String, SyncMetrics> metrics) {
+        this.wakeupCount = wakeupCount;
+        this.pipelineLatency = pipelineLatency;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns how many alarms have fired. When alarms are coalesced, a single alarm may sync
+     * several {@code TimeSync}s, so this can be less than the sum of their wakeup counts.
+     */
+    public long getWakeupCount() {
+        return wakeupCount;
+    }
+
+    /**
+     * Returns the critical path of each set of {@code TimeSync}s that synced together because some
+     * depend on others, in microseconds. This is the longest total time {@code onSync()} took along
+     * a chain of dependencies, which is how long the whole set takes when everything that can run
+     * in parallel does.
+     */
+    public Histogram getPipelineLatency() {
+        return pipelineLatency;
+    }
+
+    /**
+     * Returns the metrics of every {@code TimeSync} that has recorded any, by name.
+     */
+    public Map<String, SyncMetrics> getMetrics() {
+        return metrics;
+    }
+
+    static SyncMetricsRecorder recorder(String name) {
+        SyncMetricsRecorder recorder = sRecorders.get(name);
+        if (recorder == null) {
+            SyncMetricsRecorder newRecorder = new SyncMetricsRecorder(name);
+            recorder = sRecorders.putIfAbsent(name, newRecorder);
+            if (recorder == null) {
+                recorder = newRecorder;
+            }
+        }
+        return recorder;
+    }
+
+    static void recordWakeup() {
+        sWakeupCount.incrementAndGet();
+    }
+
+    static void recordPipeline(long criticalPathMicros) {
+        sPipelineLatency.record(criticalPathMicros);
+    }
+
+    static TimeSyncMetrics snapshot() {
+        Map<String, SyncMetrics> metrics = new HashMap<>();
+        for (SyncMetricsRecorder recorder : sRecorders.values()) {
+            SyncMetrics snapshot = recorder.snapshot();
+            metrics.put(snapshot.getName(), snapshot);
+        }
+        return new TimeSyncMetrics(sWakeupCount.get(), sPipelineLatency.snapshot(), Collections.unmodifiableMap(metrics));
+    }
+}
@@ -12,24 +12,113 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+
+import static me.tatarka.timesync.lib.ParseUtil.parseBackoff;
+import static me.tatarka.timesync.lib.ParseUtil.parseMaxAttempts;
+import static me.tatarka.timesync.lib.ParseUtil.parseMinBattery;
+import static me.tatarka.timesync.lib.ParseUtil.parseUnitTimeSpan;
+import static me.tatarka.timesync.lib.ParseUtil.validatingParseBoolean;
 
 class TimeSyncParser {
-    private static Map<String, TimeSync> sListeners;
+    private static Map<String, ListenerInfo> sListeners;
+    private static int sThreads = 1;
+    private static boolean sCoalesce;
+    private static boolean sMappedStore;
+    private static boolean sInProcess;
+    private static TimeSyncRegistry sRegistry;
+
+    /**
+     * Sets the registry to take listeners from instead of parsing them from xml. This must be
+     * called before listeners are first parsed.
+     */
+    static void setRegistry(TimeSyncRegistry registry) {
+        sRegistry = registry;
+    }
+
+    /**
+     * Returns the info for all listeners. The listeners themselves are not created until they are
+     * needed, see {@link ListenerInfo#getListener(Context)}.
+     */
+    static Map<String, ListenerInfo> parseListeners(Context context) {
+        parse(context);
+        return sListeners;
+    }
+
+    /**
+     * Returns the number of threads syncs should be run on, as given by the {@code threads}
+     * attribute on the root {@code <timesync/>} element. The default is 1, which runs all syncs
+     * one after another on the service's thread.
+     */
+    static int parseThreads(Context context) {
+        parse(context);
+        return sThreads;
+    }
 
-    static Map<String, TimeSync> parseListeners(Context context) {
+    /**
+     * Returns if alarms should be coalesced, as given by the {@code coalesce} attribute on the root
+     * {@code <timesync/>} element. The default is false, which sets a separate alarm for each
+     * listener.
+     */
+    static boolean parseCoalesce(Context context) {
+        parse(context);
+        return sCoalesce;
+    }
+
+    /**
+     * Returns if scheduling state should be kept in a memory-mapped file, as given by the {@code
+     * store} attribute on the root {@code <timesync/>} element, either "preferences" or "mapped".
+     * The default is "preferences".
+     */
+    static boolean parseMappedStore(Context context) {
+        parse(context);
+        return sMappedStore;
+    }
+
+    /**
+     * Returns if listeners that sync often should be scheduled in-process while the app is in the
+     * foreground, as given by the {@code inProcess} attribute on the root {@code <timesync/>}
+     * element. The default is false.
+     */
+    static boolean parseInProcess(Context context) {
+        parse(context);
+        return sInProcess;
+    }
+
+    private static void parse(Context context) {
         if (sListeners != null) {
-            return sListeners;
+            return;
         }
 
         sListeners = new HashMap<>();
 
+        if (sRegistry != null) {
+            parseRegistry(context, sRegistry);
+            return;
+        }
+
         try {
             XmlPullParser parser = context.getResources().getXml(getResource(context));
             while (parser.getEventType() != XmlPullParser.END_DOCUMENT) {
                 if (parser.getEventType() == XmlPullParser.START_TAG) {
-                    if (parser.getName().equals("listener")) {
+                    if (parser.getName().equals("timesync")) {
+                        String threadsString = parser.getAttributeValue(null, "threads");
+                        if (threadsString != null) {
+                            sThreads = parseThreads(threadsString);
+                        }
+                        String coalesceString = parser.getAttributeValue(null, "coalesce");
+                        if (coalesceString != null) {
+                            sCoalesce = validatingParseBoolean(coalesceString);
+                        }
+                        String storeString = parser.getAttributeValue(null, "store");
+                        if (storeString != null) {
+                            sMappedStore = parseMappedStore(storeString);
+                        }
+                        String inProcessString = parser.getAttributeValue(null, "inProcess");
+                        if (inProcessString != null) {
+                            sInProcess = validatingParseBoolean(inProcessString);
+                        }
+                        checkInProcess();
+                    } else if (parser.getName().equals("listener")) {
                         String className = parser.getAttributeValue(null, "name");
                         if (className == null) {
                             throw new IllegalArgumentException("Your <listener/> must have the attribute android:name=\"[CLASS_NAME]\"");
@@ -38,10 +127,6 @@ class TimeSyncParser {
                             className = context.getPackageName() + className;
                         }
 
-                        TimeSync listener = createListener(className);
-                        listener.onCreate(context);
-                        listener.ensureOnCreate();
-
                         List<TimeSync.Edit> edits = new ArrayList<>();
 
                         String enabledString = parser.getAttributeValue(null, "enabled");
@@ -59,14 +144,56 @@ class TimeSyncParser {
                             edits.add(TimeSync.Edit.range(parseUnitTimeSpan(rangeString)));
                         }
 
-                        listener.editDefault(edits);
+                        String backoffString = parser.getAttributeValue(null, "backoff");
+                        if (backoffString != null) {
+                            edits.add(TimeSync.Edit.backoff(parseBackoff(backoffString)));
+                        }
+
+                        String maxAttemptsString = parser.getAttributeValue(null, "maxAttempts");
+                        if (maxAttemptsString != null) {
+                            edits.add(TimeSync.Edit.maxAttempts(parseMaxAttempts(maxAttemptsString)));
+                        }
 
-                        sListeners.put(listener.getName(), listener);
+                        String timeoutString = parser.getAttributeValue(null, "timeout");
+                        if (timeoutString != null) {
+                            edits.add(TimeSync.Edit.timeout(parseUnitTimeSpan(timeoutString)));
+                        }
+
+                        String requiresNetworkString = parser.getAttributeValue(null, "requiresNetwork");
+                        if (requiresNetworkString != null) {
+                            edits.add(TimeSync.Edit.requiresNetwork(validatingParseBoolean(requiresNetworkString)));
+                        }
+
+                        String requiresUnmeteredString = parser.getAttributeValue(null, "requiresUnmetered");
+                        if (requiresUnmeteredString != null) {
+                            edits.add(TimeSync.Edit.requiresUnmetered(validatingParseBoolean(requiresUnmeteredString)));
+                        }
+
+                        String requiresChargingString = parser.getAttributeValue(null, "requiresCharging");
+                        if (requiresChargingString != null) {
+                            edits.add(TimeSync.Edit.requiresCharging(validatingParseBoolean(requiresChargingString)));
+                        }
+
+                        String minBatteryString = parser.getAttributeValue(null, "minBattery");
+                        if (minBatteryString != null) {
+                            edits.add(TimeSync.Edit.minBattery(parseMinBattery(minBatteryString)));
+                        }
+
+                        String dependsOnString = parser.getAttributeValue(null, "dependsOn");
+                        if (dependsOnString != null) {
+                            edits.add(TimeSync.Edit.dependsOn(parseNames(context, dependsOnString)));
+                        }
+
+                        String groupString = parser.getAttributeValue(null, "group");
+                        if (groupString != null) {
+                            edits.add(TimeSync.Edit.group(resolveName(context, groupString.trim())));
+                        }
+
+                        sListeners.put(className, new ListenerInfo(context, className, reflectiveFactory(className), edits));
                     }
                 }
                 parser.next();
             }
-            return sListeners;
         } catch (IOException e) {
             throw new IllegalStateException(e);
         } catch (XmlPullParserException e) {
@@ -74,6 +201,45 @@ class TimeSyncParser {
         }
     }
 
+    private static void parseRegistry(Context context, TimeSyncRegistry registry) {
+        sThreads = registry.getThreads();
+        sCoalesce = registry.isCoalesce();
+        sMappedStore = registry.isMappedStore();
+        sInProcess = registry.isInProcess();
+        checkInProcess();
+        for (TimeSyncRegistry.Entry entry : registry.getEntries()) {
+            sListeners.put(entry.name, new ListenerInfo(context, entry.name, entry.factory, entry.defaults));
+        }
+    }
+
+    /**
+     * Creates the given group, from the registry if it has it or with reflection otherwise. Groups
+     * are created this way, instead of when parsing, since a listener's group can be changed with
+     * an edit.
+     */
+    static TimeSyncGroup createGroup(String name) throws IllegalArgumentException {
+        if (sRegistry != null) {
+            TimeSyncRegistry.GroupFactory factory = sRegistry.getGroupFactory(name);
+            if (factory != null) {
+                return factory.create();
+            }
+        }
+        try {
+            return (TimeSyncGroup) Class.forName(name).newInstance();
+        } catch (InstantiationException | IllegalAccessException | ClassNotFoundException | ClassCastException e) {
+            throw new IllegalArgumentException("Invalid TimeSyncGroup {" + name + "}", e);
+        }
+    }
+
+    private static TimeSyncRegistry.Factory reflectiveFactory(final String name) {
+        return new TimeSyncRegistry.Factory() {
+            @Override
+            public TimeSync create() {
+                return createListener(name);
+            }
+        };
+    }
+
     private static TimeSync createListener(String name) throws IllegalArgumentException {
         try {
             return (TimeSync) Class.forName(name).newInstance();
@@ -95,40 +261,47 @@ class TimeSyncParser {
         }
     }
 
-    private static boolean validatingParseBoolean(String input) throws BooleanFormatException {
+    private static boolean parseMappedStore(String input) throws IllegalArgumentException {
         switch (input) {
-            case "true":
-                return true;
-            case "false":
+            case "preferences":
                 return false;
+            case "mapped":
+                return true;
             default:
-                throw new BooleanFormatException("For input string: " + input);
+                throw new IllegalArgumentException("store must be \"preferences\" or \"mapped\", was: " + input);
         }
     }
 
-    private static final Pattern timeSpanRegex = Pattern.compile("(\\d+) +(second|minute|hour|day|week)s?");
-    private static long parseUnitTimeSpan(String input) throws IllegalArgumentException {
-        if (input == null) {
-            throw new IllegalArgumentException("For input string: " + input);
+    private static String[] parseNames(Context context, String input) {
+        String[] names = input.split(",");
+        for (int i = 0; i < names.length; i++) {
+            names[i] = resolveName(context, names[i].trim());
         }
+        return names;
+    }
 
-        Matcher matcher = timeSpanRegex.matcher(input);
-        if (matcher.matches()) {
-            String timeSpanString = matcher.group(1);
-            long timeUnit = Long.parseLong(timeSpanString);
-            String unitString = matcher.group(2);
-
-            switch (unitString) {
-                case "second": return timeUnit * TimeSync.Config.SECONDS;
-                case "minute": return timeUnit * TimeSync.Config.MINUTES;
-                case "hour": return timeUnit * TimeSync.Config.HOURS;
-                case "day": return timeUnit * TimeSync.Config.DAYS;
-                case "week": return timeUnit * TimeSync.Config.WEEKS;
-                default:throw new IllegalArgumentException("Unknown unit: " + unitString);
-            }
-        } else {
-            // May have no units, just parse as milliseconds
-            return Long.parseLong(input);
+    /**
+     * Resolves a class name starting with "." against the package name.
+     */
+    private static String resolveName(Context context, String name) {
+        return name.startsWith(".") ? context.getPackageName() + name : name;
+    }
+
+    /**
+     * A coalesced alarm is shared between listeners, so it can't be moved to the timer for just
+     * the ones that sync often.
+     */
+    private static void checkInProcess() throws IllegalArgumentException {
+        if (sInProcess && sCoalesce) {
+            throw new IllegalArgumentException("inProcess can't be used together with coalesce");
+        }
+    }
+
+    private static int parseThreads(String input) throws IllegalArgumentException {
+        int threads = Integer.parseInt(input);
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1, was: " + input);
         }
+        return threads;
     }
 }
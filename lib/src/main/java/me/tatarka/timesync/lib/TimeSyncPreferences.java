@@ -1,41 +1,126 @@
 package me.tatarka.timesync.lib;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 
-class TimeSyncPreferences {
+/**
+ * Keeps scheduling state in shared preferences. Changes are only written out on {@link #flush()}.
+ * Retry state is written synchronously so that it isn't lost on a crash, everything else is
+ * written in the background.
+ */
+class TimeSyncPreferences implements StateStore {
     static final String NAME = "me.tatarka.timesync.SHARED_PREFS";
     private static final String SEED = "seed";
     private static final String POWER_CONNECTED = "power_connected";
     private static final String LAST_FAILED_TIME_SPAN = "last_failed_time_span";
+    private static final String NEXT_SYNC_TIME = "next_sync_time";
+    private static final String FAILED_ATTEMPTS = "failed_attempts";
+    private static final String VALIDATOR = "validator";
 
-    private SharedPreferences prefs;
+    private WriteBehindPreferences prefs;
+    private boolean durableChanges;
 
     TimeSyncPreferences(Context context) {
-        prefs = context.getSharedPreferences(NAME, Context.MODE_PRIVATE);
+        prefs = WriteBehindPreferences.get(context);
     }
 
-    long getSeed() {
+    @Override
+    public long getSeed() {
         return prefs.getLong(SEED, 0);
     }
 
-    void setSeed(long seed) {
-        prefs.edit().putLong(SEED, seed).commit();
+    @Override
+    public void setSeed(long seed) {
+        prefs.putLong(SEED, seed);
+        durableChanges = true;
     }
 
-    boolean isPowerConnected() {
+    @Override
+    public boolean isPowerConnected() {
         return prefs.getBoolean(POWER_CONNECTED, false);
     }
 
-    void setPowerConnected(boolean value) {
-        prefs.edit().putBoolean(POWER_CONNECTED, value).commit();
+    @Override
+    public void setPowerConnected(boolean value) {
+        prefs.putBoolean(POWER_CONNECTED, value);
     }
 
-    long getLastFailedTimeSpan(String name) {
+    @Override
+    public long getLastFailedTimeSpan(String name) {
         return prefs.getLong(name + LAST_FAILED_TIME_SPAN, 0);
     }
 
-    void setLastFailedTimeSpan(String name, long timeSpan) {
-        prefs.edit().putLong(name + LAST_FAILED_TIME_SPAN, timeSpan).commit();
+    @Override
+    public void setLastFailedTimeSpan(String name, long timeSpan) {
+        // This is reset after every successful sync, which is almost always already 0.
+        if (getLastFailedTimeSpan(name) == timeSpan) return;
+        prefs.putLong(name + LAST_FAILED_TIME_SPAN, timeSpan);
+        durableChanges = true;
+    }
+
+    @Override
+    public int getFailedAttempts(String name) {
+        return (int) prefs.getLong(name + FAILED_ATTEMPTS, 0);
+    }
+
+    @Override
+    public void setFailedAttempts(String name, int attempts) {
+        if (getFailedAttempts(name) == attempts) return;
+        prefs.putLong(name + FAILED_ATTEMPTS, attempts);
+        durableChanges = true;
+    }
+
+    @Override
+    public long getNextSyncTime(String name) {
+        return prefs.getLong(name + NEXT_SYNC_TIME, 0);
+    }
+
+    @Override
+    public void setNextSyncTime(String name, long time) {
+        prefs.putLong(name + NEXT_SYNC_TIME, time);
+    }
+
+    @Override
+    public String getValidator(String name) {
+        return getValidator(prefs, name);
+    }
+
+    @Override
+    public void setValidator(String name, String validator) {
+        if (setValidator(prefs, name, validator)) {
+            durableChanges = true;
+        }
+    }
+
+    // Validators are kept here for MappedStateStore as well.
+
+    static String getValidator(WriteBehindPreferences prefs, String name) {
+        String validator = prefs.getString(name + VALIDATOR, "");
+        // An empty string is stored to clear it, since values can't be removed.
+        return validator.isEmpty() ? null : validator;
+    }
+
+    /**
+     * @return true if the validator changed
+     */
+    static boolean setValidator(WriteBehindPreferences prefs, String name, String validator) {
+        if (validator == null) {
+            validator = "";
+        }
+        if (validator.equals(prefs.getString(name + VALIDATOR, ""))) return false;
+        prefs.putString(name + VALIDATOR, validator);
+        return true;
+    }
+
+    /**
+     * Writes out all changes made since the last flush in a single write.
+     */
+    @Override
+    public void flush() {
+        if (durableChanges) {
+            durableChanges = false;
+            prefs.commit();
+        } else {
+            prefs.apply(null);
+        }
     }
 }
@@ -12,7 +12,7 @@ import java.util.Arrays;
 public final class TimeSyncProxy {
     private Context context;
     private String name;
-    private TimeSync listener;
+    private ListenerInfo listener;
 
     TimeSyncProxy(Context context, String name) {
         this.context = context;
@@ -44,7 +44,17 @@ public final class TimeSyncProxy {
      * @see TimeSync.Config
      */
     public TimeSync.Config config() {
-        return listener.config();
+        return listener.config;
+    }
+
+    /**
+     * Gets a snapshot of how the {@link TimeSync} has been syncing since the process started.
+     *
+     * @return the metrics
+     * @see TimeSync#metrics()
+     */
+    public SyncMetrics metrics() {
+        return listener.metrics.snapshot();
     }
 
     /**
@@ -54,7 +64,19 @@ public final class TimeSyncProxy {
      * @see TimeSync#edit(TimeSync.Edit...)
      */
     public void edit(Iterable<TimeSync.Edit> edits) {
-        listener.edit(edits);
+        edit(edits, null);
+    }
+
+    /**
+     * Modifies the current configuration for the {@link TimeSync}. The new configuration takes
+     * effect immediately, but is written to disk in the background.
+     *
+     * @param edits    the edits
+     * @param listener notified on the main thread once the edits are written, may be null
+     * @see TimeSync#edit(Iterable, TimeSync.OnEditCommittedListener)
+     */
+    public void edit(Iterable<TimeSync.Edit> edits, TimeSync.OnEditCommittedListener listener) {
+        this.listener.getListener(context).edit(edits, listener);
         TimeSyncService.update(context, name);
     }
 
@@ -0,0 +1,147 @@
+package me.tatarka.timesync.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds every {@link TimeSync} along with its default configuration, so that they don't have to be
+ * parsed from xml and created with reflection at startup. You normally don't subclass this
+ * yourself, a subclass is generated from the classes annotated with {@link TimeSyncListener}.
+ *
+ * @see TimeSync#start(android.content.Context, TimeSyncRegistry)
+ */
+public abstract class TimeSyncRegistry {
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<String, GroupFactory> groups = new HashMap<>();
+    private int threads = 1;
+    private boolean coalesce;
+    private boolean mappedStore;
+    private boolean inProcess;
+
+    /**
+     * Creates a new instance of a {@link TimeSync}.
+     */
+    public interface Factory {
+        TimeSync create();
+    }
+
+    /**
+     * Creates a new instance of a {@link TimeSyncGroup}.
+     */
+    public interface GroupFactory {
+        TimeSyncGroup create();
+    }
+
+    /**
+     * Adds a {@link TimeSync} to the registry.
+     *
+     * @param name     the name of the {@code TimeSync}, this must be its class name
+     * @param factory  the factory to create it with
+     * @param defaults the default configuration, as if set with {@link
+     *                 TimeSync#editDefault(TimeSync.Edit...)}
+     */
+    protected final void add(String name, Factory factory, TimeSync.Edit... defaults) {
+        entries.add(new Entry(name, factory, Arrays.asList(defaults)));
+    }
+
+    /**
+     * Adds a {@link TimeSyncGroup} to the registry, so that it isn't created with reflection.
+     *
+     * @param name    the name of the {@code TimeSyncGroup}, this must be its class name
+     * @param factory the factory to create it with
+     */
+    protected final void addGroup(String name, GroupFactory factory) {
+        groups.put(name, factory);
+    }
+
+    /**
+     * Sets how many syncs may run at the same time. This is the same as the {@code threads}
+     * attribute in xml.
+     *
+     * @param threads the number of threads, must be at least 1
+     * @return the registry for chaining
+     */
+    public TimeSyncRegistry setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1, was: " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Sets if alarms should be coalesced. This is the same as the {@code coalesce} attribute in
+     * xml.
+     *
+     * @param coalesce true to coalesce alarms
+     * @return the registry for chaining
+     */
+    public TimeSyncRegistry setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+        return this;
+    }
+
+    /**
+     * Sets if scheduling state should be kept in a memory-mapped file instead of shared
+     * preferences. This is the same as setting the {@code store} attribute in xml to "mapped".
+     *
+     * @param mappedStore true to use a memory-mapped file
+     * @return the registry for chaining
+     */
+    public TimeSyncRegistry setMappedStore(boolean mappedStore) {
+        this.mappedStore = mappedStore;
+        return this;
+    }
+
+    /**
+     * Sets if listeners that sync often should be scheduled in-process while the app is in the
+     * foreground. This is the same as the {@code inProcess} attribute in xml, and can't be used
+     * together with {@link #setCoalesce(boolean)}.
+     *
+     * @param inProcess true to schedule them in-process
+     * @return the registry for chaining
+     */
+    public TimeSyncRegistry setInProcess(boolean inProcess) {
+        this.inProcess = inProcess;
+        return this;
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    GroupFactory getGroupFactory(String name) {
+        return groups.get(name);
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    boolean isCoalesce() {
+        return coalesce;
+    }
+
+    boolean isMappedStore() {
+        return mappedStore;
+    }
+
+    boolean isInProcess() {
+        return inProcess;
+    }
+
+    static final class Entry {
+        final String name;
+        final Factory factory;
+        final List<TimeSync.Edit> defaults;
+
+        Entry(String name, Factory factory, List<TimeSync.Edit> defaults) {
+            this.name = name;
+            this.factory = factory;
+            this.defaults = defaults;
+        }
+    }
+}
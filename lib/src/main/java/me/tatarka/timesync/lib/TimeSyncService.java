@@ -1,21 +1,82 @@
 package me.tatarka.timesync.lib;
 
 import android.app.AlarmManager;
-import android.app.IntentService;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
-import android.provider.Settings;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import static me.tatarka.timesync.lib.MathUtil.randomInRange;
-
-public class TimeSyncService extends IntentService {
+/**
+ * Handles all {@code TimeSync} intents. Like an {@link android.app.IntentService}, intents are
+ * handled one at a time in the order they are received on a single service thread. Syncs either
+ * run on that same thread or, if the {@code threads} attribute is set in xml, on a bounded pool of
+ * worker threads. In the latter case the service stays alive until all running syncs have finished.
+ *
+ * <p>Each listener has a single pending sync. Sync requests for a listener that already has one
+ * waiting to be handled are dropped, and ones for a listener that is already syncing become a
+ * single follow-up sync.</p>
+ *
+ * <p>When the network comes back after syncs were skipped for not having one, the listeners that
+ * missed a sync are resumed gradually. Each is delayed by a random amount within its range, the
+ * most overdue go first, and no more than {@code threads} of them sync at the same time.</p>
+ *
+ * <p>When each listener syncs is decided by a {@link Scheduler}, this service only sets the alarms
+ * it asks for and runs the syncs.</p>
+ *
+ * <p>If the {@code inProcess} attribute is set in xml, listeners that sync at least once a minute
+ * are scheduled on an {@link InProcessTimer} instead of the {@link AlarmManager} while the app is
+ * in the foreground. The service stays alive as long as any are scheduled this way, and hands
+ * them back to the {@code AlarmManager} once the app goes to the background.</p>
+ *
+ * <p>Listeners that depend on others with {@code dependsOn} sync as a pipeline after them, see
+ * {@link SyncGraph}. Each listener is started as soon as everything it depends on has succeeded,
+ * so independent ones run in parallel on the pool.</p>
+ *
+ * <p>A listener with a {@code timeout} always syncs on a worker thread, even if others run on the
+ * service thread. Once it runs out of time it is canceled and handled as a failure right away. If
+ * it doesn't stop, the pool gets another thread until it does, so that other syncs aren't held
+ * up.</p>
+ *
+ * <p>Listeners only sync once the device meets their constraints. Those that require a network
+ * wait for it as described above, while the rest keep syncing without one. Listeners that need an
+ * unmetered network, charging or a minimum battery level are deferred to their next regular sync,
+ * and resumed sooner if the network or power state changes so that they are met.</p>
+ *
+ * <p>An {@link AsyncTimeSync} is started on the service thread and doesn't take up a worker while
+ * it waits. Its result is handled like that of any other sync once its callback is called, and the
+ * service stays alive until it is.</p>
+ *
+ * <p>Listeners in a {@code group} that are due together are synced with a single call to their
+ * {@link TimeSyncGroup}, on the pool like any other sync. The results are then handled per
+ * listener. While a group is syncing, listeners of that group that have to sync wait for it to
+ * finish and then sync together.</p>
+ */
+public class TimeSyncService extends Service {
+    private static final String TAG = "TimeSync";
     private static final String TYPE = "type";
     private static final int TYPE_START = 0;
     private static final int TYPE_STOP = 1;
@@ -24,32 +85,334 @@ public class TimeSyncService extends IntentService {
     private static final int TYPE_SYNC_INEXACT = 4;
     private static final int TYPE_NETWORK_BACK = 5;
     private static final int TYPE_POWER_CHANGED = 6;
+    private static final int TYPE_SYNC_BATCH = 7;
+    private static final int TYPE_FOREGROUND_CHANGED = 8;
+
+    private static final String ACTION_SYNC_BATCH = "me.tatarka.timesync.SYNC_BATCH";
 
     private static final String NAME = "name";
+    private static final String NAMES = "names";
     private static final String POWER_CONNECTED = "power_connected";
+    private static final String SCHEDULED_TIME = "scheduled_time";
+    private static final String FOREGROUND = "foreground";
+    private static final String FROM_ALARM = "from_alarm";
 
-    private static final long BASE_RETRY_SPAN = 500;
-    private static final long MIN_RETRY_CAP = 5 * TimeSync.Config.SECONDS;
+    private static final int MSG_INTENT = 0;
+    private static final int MSG_SYNC_COMPLETE = 1;
+    private static final int MSG_RESUME = 2;
+    private static final int MSG_TIMER = 3;
+    private static final int MSG_TIMEOUT = 4;
+    private static final int MSG_GROUP_COMPLETE = 5;
 
-    private TimeSyncPreferences prefs;
-    private long seed;
-    private boolean powerConnected;
+    // Listeners that sync at least this often are scheduled in-process in the foreground.
+    private static final long IN_PROCESS_MAX_EVERY = 60 * 1000;
 
-    private Map<String, TimeSync> listeners;
+    // The alarm currently set for each listener. Kept across restarts of the service, so that
+    // alarms which haven't changed aren't set again. Only accessed on the service thread.
+    private static final AlarmTracker sAlarms = new AlarmTracker();
+    // The PendingIntent of each listener's alarm. They are never canceled, so that they can be
+    // reused for every alarm. Only accessed on the service thread.
+    private static final AlarmIntentCache<PendingIntent> sAlarmIntents = new AlarmIntentCache<>();
+    // Each group, by name, created when one of its listeners first syncs. Only accessed on the
+    // service thread.
+    private static final Map<String, TimeSyncGroup> sGroups = new HashMap<>();
 
-    public TimeSyncService() {
-        super(TimeSyncService.class.getName());
-    }
+    // Creates the PendingIntents in sAlarmIntents.
+    private final AlarmIntentCache.Factory<PendingIntent> alarmIntentFactory = new AlarmIntentCache.Factory<PendingIntent>() {
+        @Override
+        public PendingIntent create(String name) {
+            Intent intent = getSyncIntent(TimeSyncService.this, name);
+            intent.putExtra(FROM_ALARM, true);
+            // Replace the extras of an alarm set by an older version.
+            return PendingIntent.getService(TimeSyncService.this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        }
+    };
+
+    private StateStore prefs;
+    private Scheduler scheduler;
+    private ServiceAlarmSink alarmSink;
+    // Looked up once per message, since TimeZone.getDefault() returns a new copy each time.
+    private TimeZone timeZone;
+
+    private Map<String, ListenerInfo> listeners;
+    // Rebuilt whenever a listener's configuration changes.
+    private SyncGraph graph;
+
+    private Looper serviceLooper;
+    private ServiceHandler serviceHandler;
+    // Null if syncs run on the service thread.
+    private SyncExecutor syncExecutor;
+    // Runs syncs with a timeout if the rest run on the service thread. Created when first needed.
+    private SyncExecutor timeoutExecutor;
+    // Only accessed on the service thread.
+    private int lastStartId;
+    private int runningSyncs;
+    // Listeners resumed on the pool that haven't finished yet.
+    private final Set<String> resuming = new HashSet<>();
+    private int resumeLimit;
+    // Listeners with a requested sync intent waiting to be handled. Added to on the main thread and
+    // removed from on the service thread.
+    private final Set<String> queuedSyncs = new HashSet<>();
+    // The AsyncTimeSyncs that are in flight. Only accessed on the service thread.
+    private final Set<String> asyncSyncs = new HashSet<>();
+    // The follow-up sync of each AsyncTimeSync in flight that has one, with its pipeline or null.
+    private final Map<String, Pipeline> asyncFollowUps = new HashMap<>();
+    // The groups that are syncing, and the listeners of each waiting for it to finish.
+    private final Map<String, List<GroupMember>> syncingGroups = new HashMap<>();
+    // The group sync each listener syncing with its group is part of, by its context.
+    private final Map<SyncContext, GroupRun> groupRuns = new HashMap<>();
+    // Null unless listeners may be scheduled in-process.
+    private InProcessTimer timer;
+    private boolean foreground;
+    // Listeners scheduled on the timer instead of the AlarmManager.
+    private final Set<String> onTimer = new HashSet<>();
 
     @Override
     public void onCreate() {
         super.onCreate();
 
-        prefs = new TimeSyncPreferences(this);
-        seed = findOrCreateSeed(prefs);
-        powerConnected = prefs.isPowerConnected();
-
         listeners = TimeSyncParser.parseListeners(this);
+        for (ListenerInfo listener : listeners.values()) {
+            if (listener.needsCreate()) {
+                listener.getListener(this);
+            }
+        }
+
+        if (TimeSyncParser.parseMappedStore(this)) {
+            prefs = MappedStateStore.open(this, listeners.keySet());
+        } else {
+            prefs = new TimeSyncPreferences(this);
+        }
+        timeZone = TimeZone.getDefault();
+
+        int threads = TimeSyncParser.parseThreads(this);
+        resumeLimit = threads;
+        if (threads > 1) {
+            syncExecutor = new SyncExecutor(threads);
+        }
+
+        Map<String, TimeSync.Config> configs = new LinkedHashMap<>();
+        for (ListenerInfo listener : listeners.values()) {
+            configs.put(listener.name, listener.config);
+        }
+        graph = buildGraph();
+        boolean coalesce = TimeSyncParser.parseCoalesce(this);
+        alarmSink = new ServiceAlarmSink();
+        scheduler = new Scheduler(new ServiceClock(), alarmSink, prefs, configs, coalesce);
+        // The windows are only kept in memory, so if a batch alarm is still pending we were killed
+        // while running and need to rebuild them.
+        if (coalesce && getSyncBatchPendingIntent(PendingIntent.FLAG_NO_CREATE) != null) {
+            scheduler.restoreBatch();
+            scheduler.commit();
+        }
+
+        HandlerThread thread = new HandlerThread(TimeSyncService.class.getName());
+        thread.start();
+        serviceLooper = thread.getLooper();
+        serviceHandler = new ServiceHandler(serviceLooper);
+
+        if (TimeSyncParser.parseInProcess(this)) {
+            // Ask to be told first, so that a change in between isn't missed.
+            ForegroundTracker.notifyService(true);
+            foreground = ForegroundTracker.isForeground();
+            timer = new InProcessTimer(new InProcessTimer.Callback() {
+                @Override
+                public void onExpired(List<String> names) {
+                    serviceHandler.obtainMessage(MSG_TIMER, names).sendToTarget();
+                }
+            });
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        boolean duplicate = false;
+        // Alarms are never dropped, since the alarm's bookkeeping has to happen when it fires.
+        if (isRequestedSync(intent)) {
+            synchronized (queuedSyncs) {
+                duplicate = !queuedSyncs.add(intent.getStringExtra(NAME));
+            }
+        }
+        // Duplicates are still sent so that the start id is handled in order.
+        Message msg = serviceHandler.obtainMessage(MSG_INTENT, startId, duplicate ? 1 : 0, intent);
+        serviceHandler.sendMessage(msg);
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (timer != null) {
+            ForegroundTracker.notifyService(false);
+            // The scheduler is only accessed on the service thread, so hand the timer's listeners
+            // back to the AlarmManager there before it stops. Anything still queued is dropped,
+            // like with quit().
+            serviceHandler.postAtFrontOfQueue(new Runnable() {
+                @Override
+                public void run() {
+                    onHandleDestroy();
+                    serviceLooper.quit();
+                }
+            });
+        } else {
+            serviceLooper.quit();
+        }
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+        }
+        if (timeoutExecutor != null) {
+            timeoutExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Moves the listeners on the timer back to the AlarmManager, otherwise they wouldn't sync
+     * again until something else reschedules them.
+     */
+    private void onHandleDestroy() {
+        foreground = false;
+        for (String name : new ArrayList<>(onTimer)) {
+            scheduler.refreshAlarm(name);
+            if (onTimer.contains(name)) {
+                // Its time has passed, but the sync it was due for was dropped with the queue.
+                alarmSink.set(name, System.currentTimeMillis());
+            }
+        }
+        alarmSink.apply();
+        timer.shutdown();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private final class ServiceHandler extends Handler {
+        ServiceHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            timeZone = TimeZone.getDefault();
+            switch (msg.what) {
+                case MSG_INTENT: {
+                    lastStartId = msg.arg1;
+                    Intent intent = (Intent) msg.obj;
+                    boolean duplicate = msg.arg2 != 0;
+                    if (intent != null && !duplicate) {
+                        onHandleIntent(intent);
+                    }
+                    break;
+                }
+                case MSG_SYNC_COMPLETE: {
+                    runningSyncs--;
+                    onSyncComplete((CompletedSync) msg.obj);
+                    break;
+                }
+                case MSG_RESUME: {
+                    // Handled below.
+                    break;
+                }
+                case MSG_TIMER: {
+                    @SuppressWarnings("unchecked")
+                    List<String> names = (List<String>) msg.obj;
+                    onTimerExpired(names);
+                    break;
+                }
+                case MSG_TIMEOUT: {
+                    onSyncTimeout((CompletedSync) msg.obj);
+                    break;
+                }
+                case MSG_GROUP_COMPLETE: {
+                    onGroupComplete((CompletedGroup) msg.obj);
+                    break;
+                }
+            }
+            if (scheduler.isResuming()) {
+                drainResume();
+            }
+            scheduler.commit();
+            alarmSink.apply();
+            // Don't stop while syncs are still running on the pool, their results still need to be
+            // handled, while listeners are still waiting to be resumed, or while listeners are
+            // scheduled in-process.
+            if (runningSyncs == 0 && !scheduler.isResuming() && (timer == null || timer.isEmpty())) {
+                stopSelf(lastStartId);
+            }
+        }
+    }
+
+    private static final class CompletedSync {
+        final ListenerInfo listener;
+        // Null unless the listener synced as part of a pipeline.
+        final Pipeline pipeline;
+        final SyncContext context;
+        // Null unless the sync succeeded with a new validator.
+        final SyncResult result;
+        final Exception error;
+        final long durationMicros;
+
+        CompletedSync(ListenerInfo listener, Pipeline pipeline, SyncContext context, SyncResult result, Exception error, long durationMicros) {
+            this.listener = listener;
+            this.pipeline = pipeline;
+            this.context = context;
+            this.result = result;
+            this.error = error;
+            this.durationMicros = durationMicros;
+        }
+    }
+
+    private static final class CompletedGroup {
+        final GroupRun run;
+        // Without the syncs that timed out, since those have already been handled.
+        final List<CompletedSync> syncs;
+
+        CompletedGroup(GroupRun run, List<CompletedSync> syncs) {
+            this.run = run;
+            this.syncs = syncs;
+        }
+    }
+
+    /**
+     * A single sync of a group. Only accessed on the service thread.
+     */
+    private static final class GroupRun {
+        final String group;
+        // The members that haven't timed out. Once none are left the group is abandoned.
+        int remaining;
+        boolean abandoned;
+
+        GroupRun(String group, int remaining) {
+            this.group = group;
+            this.remaining = remaining;
+        }
+    }
+
+    /**
+     * A listener syncing with its group. Only accessed on the service thread.
+     */
+    private static final class GroupMember {
+        final ListenerInfo listener;
+        // Null unless the listener syncs as part of a pipeline.
+        final Pipeline pipeline;
+
+        GroupMember(ListenerInfo listener, Pipeline pipeline) {
+            this.listener = listener;
+            this.pipeline = pipeline;
+        }
+    }
+
+    /**
+     * Listeners syncing together because some of them depend on others. Only accessed on the
+     * service thread.
+     */
+    private static final class Pipeline {
+        final SyncGraph.Run run;
+        boolean recorded;
+
+        Pipeline(SyncGraph.Run run) {
+            this.run = run;
+        }
     }
 
     static void start(Context context) {
@@ -80,6 +443,10 @@ public class TimeSyncService extends IntentService {
         context.startService(getPowerChangedIntent(context, connected));
     }
 
+    static void foregroundChanged(Context context, boolean foreground) {
+        context.startService(getForegroundChangedIntent(context, foreground));
+    }
+
     static Intent getStartIntent(Context context) {
         Intent intent = new Intent(context, TimeSyncService.class);
         intent.putExtra(TYPE, TYPE_START);
@@ -108,6 +475,14 @@ public class TimeSyncService extends IntentService {
         return intent;
     }
 
+    static Intent getSyncBatchIntent(Context context, String[] names) {
+        Intent intent = new Intent(context, TimeSyncService.class);
+        intent.setAction(ACTION_SYNC_BATCH);
+        intent.putExtra(TYPE, TYPE_SYNC_BATCH);
+        intent.putExtra(NAMES, names);
+        return intent;
+    }
+
     static Intent getUpdateIntent(Context context, String name) {
         Intent intent = new Intent(context, TimeSyncService.class);
         intent.putExtra(TYPE, TYPE_UPDATE);
@@ -128,8 +503,22 @@ public class TimeSyncService extends IntentService {
         return intent;
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
+    static Intent getForegroundChangedIntent(Context context, boolean foreground) {
+        Intent intent = new Intent(context, TimeSyncService.class);
+        intent.putExtra(TYPE, TYPE_FOREGROUND_CHANGED);
+        intent.putExtra(FOREGROUND, foreground);
+        return intent;
+    }
+
+    /**
+     * Returns true if the intent is a sync that was requested explicitly instead of by an alarm.
+     * Only these are merged when one for the same listener is already queued.
+     */
+    private static boolean isRequestedSync(Intent intent) {
+        return intent != null && intent.getIntExtra(TYPE, 0) == TYPE_SYNC && !intent.getBooleanExtra(FROM_ALARM, false);
+    }
+
+    private void onHandleIntent(Intent intent) {
         switch (intent.getIntExtra(TYPE, 0)) {
             case TYPE_START: {
                 onHandleStart();
@@ -141,177 +530,868 @@ public class TimeSyncService extends IntentService {
             }
             case TYPE_SYNC: {
                 String name = intent.getStringExtra(NAME);
-                TimeSync listener = listeners.get(name);
+                if (isRequestedSync(intent)) {
+                    synchronized (queuedSyncs) {
+                        queuedSyncs.remove(name);
+                    }
+                }
+                ListenerInfo listener = listeners.get(name);
                 if (listener != null) {
+                    if (intent.getBooleanExtra(FROM_ALARM, false)) {
+                        // Not always the stored next sync time, a listener that is resumed gets an
+                        // alarm for when it's resumed instead.
+                        long alarmTime = sAlarms.onFired(name);
+                        scheduler.onAlarmFired(name);
+                        TimeSyncMetrics.recordWakeup();
+                        if (alarmTime != 0) {
+                            listener.metrics.recordWakeup(System.currentTimeMillis() - alarmTime);
+                        }
+                    }
                     onHandleSync(listener);
+                } else {
+                    // Listeners in a group share an alarm named after it.
+                    List<String> due = scheduler.onGroupFired(name);
+                    long alarmTime = 0;
+                    if (!due.isEmpty()) {
+                        alarmTime = sAlarms.onFired(name);
+                        TimeSyncMetrics.recordWakeup();
+                    }
+                    List<ListenerInfo> fired = new ArrayList<>(due.size());
+                    for (String member : due) {
+                        ListenerInfo info = listeners.get(member);
+                        // Each is as late as the group's alarm.
+                        if (alarmTime != 0) {
+                            info.metrics.recordWakeup(System.currentTimeMillis() - alarmTime);
+                        }
+                        fired.add(info);
+                    }
+                    onHandleSyncs(fired);
                 }
                 break;
             }
             case TYPE_SYNC_INEXACT: {
                 String name = intent.getStringExtra(NAME);
-                TimeSync listener = listeners.get(name);
+                ListenerInfo listener = listeners.get(name);
                 if (listener != null) {
-                    onHandleSyncInexact(listener);
+                    scheduler.syncInexact(name);
+                }
+                break;
+            }
+            case TYPE_SYNC_BATCH: {
+                String[] names = intent.getStringArrayExtra(NAMES);
+                long lateness = System.currentTimeMillis() - intent.getLongExtra(SCHEDULED_TIME, 0);
+                TimeSyncMetrics.recordWakeup();
+                List<ListenerInfo> fired = new ArrayList<>(names.length);
+                List<String> firedNames = new ArrayList<>(names.length);
+                for (String name : names) {
+                    ListenerInfo listener = listeners.get(name);
+                    if (listener != null) {
+                        fired.add(listener);
+                        firedNames.add(name);
+                    }
+                }
+                scheduler.onBatchFired(firedNames);
+                for (ListenerInfo listener : fired) {
+                    listener.metrics.recordWakeup(lateness);
                 }
+                onHandleSyncs(fired);
                 break;
             }
             case TYPE_UPDATE: {
                 String name = intent.getStringExtra(NAME);
-                TimeSync listener = listeners.get(name);
+                ListenerInfo listener = listeners.get(name);
                 if (listener != null) {
-                    onHandleUpdate(listener);
+                    scheduler.update(name);
+                    graph = buildGraph();
                 }
                 break;
             }
             case TYPE_NETWORK_BACK: {
-                AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-                for (TimeSync listener : listeners.values()) {
-                    add(alarmManager, listener);
-                }
+                scheduler.onNetworkBack();
+                resumeDeferred();
                 break;
             }
             case TYPE_POWER_CHANGED: {
                 boolean connected = intent.getBooleanExtra(POWER_CONNECTED, false);
-                onHandlePowerChanged(connected);
+                scheduler.onPowerChanged(connected);
+                resumeDeferred();
                 // TimeSyncPowerReceiver is a WakefulBroadcastReceiver, so make sure to release the lock.
                 TimeSyncPowerReceiver.completeWakefulIntent(intent);
                 break;
             }
+            case TYPE_FOREGROUND_CHANGED: {
+                onHandleForegroundChanged(intent.getBooleanExtra(FOREGROUND, false));
+                break;
+            }
         }
     }
 
     private void onHandleStart() {
-        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-        removeAll(alarmManager);
-        for (TimeSync listener : listeners.values()) {
-            add(alarmManager, listener);
-        }
+        scheduler.start();
         TimeSyncPowerReceiver.enable(this);
         TimeSyncBootReceiver.enable(this);
     }
 
     private void onHandleStop() {
-        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-        removeAll(alarmManager);
+        scheduler.stop();
         TimeSyncNetworkReceiver.disable(this);
         TimeSyncPowerReceiver.disable(this);
         TimeSyncBootReceiver.disable(this);
     }
 
-    private void add(AlarmManager alarmManager, TimeSync listener) {
-        if (!listener.config().enabled()) return;
+    /**
+     * Moves the listeners that sync often between the timer and the AlarmManager.
+     */
+    private void onHandleForegroundChanged(boolean foreground) {
+        if (timer == null) return;
+        this.foreground = foreground;
+        for (ListenerInfo listener : listeners.values()) {
+            if (runsInProcess(listener.name)) {
+                scheduler.refreshAlarm(listener.name);
+            }
+        }
+    }
+
+    private void onTimerExpired(List<String> names) {
+        for (String name : names) {
+            // Skip timers that were set again since they expired.
+            if (timer.isScheduled(name)) continue;
+            onTimer.remove(name);
+            ListenerInfo listener = listeners.get(name);
+            if (listener != null) {
+                scheduler.onAlarmFired(name);
+                onHandleSync(listener);
+            }
+        }
+    }
+
+    private boolean runsInProcess(String name) {
+        ListenerInfo listener = listeners.get(name);
+        // Groups always use the AlarmManager.
+        if (listener == null) return false;
+        long every = listener.config.every();
+        return every > 0 && every <= IN_PROCESS_MAX_EVERY;
+    }
+
+    private PendingIntent getSyncBatchPendingIntent(int flags) {
+        return PendingIntent.getService(this, 0, getSyncBatchIntent(this, new String[0]), flags);
+    }
+
+    private int getAlarmType() {
+        return scheduler.isPowerConnected() ? AlarmManager.RTC_WAKEUP : AlarmManager.RTC;
+    }
 
-        TimeSync.Config config = listener.config();
-        long span = config.every();
-        if (span > 0) {
-            long time = calculateTime(span, config.range());
-            setAlarm(alarmManager, listener.getName(), time);
+    private SyncGraph buildGraph() {
+        Map<String, List<String>> dependsOn = new HashMap<>();
+        for (ListenerInfo listener : listeners.values()) {
+            dependsOn.put(listener.name, listener.config.dependsOn());
         }
+        // Edits are checked before they are stored, but a listener that was depended on may have
+        // been removed since. Throwing here would crash every time the service starts.
+        List<String> errors = new ArrayList<>();
+        SyncGraph graph = SyncGraph.lenient(dependsOn, errors);
+        for (String error : errors) {
+            Log.w(TAG, error + ", ignoring it");
+        }
+        return graph;
+    }
+
+    /**
+     * Syncs the given listener, along with the listeners that depend on it.
+     *
+     * @return true if the listener's sync is running on the pool and will finish later
+     */
+    private boolean onHandleSync(ListenerInfo listener) {
+        return onHandleSyncs(Collections.singletonList(listener));
     }
 
-    private void setAlarm(AlarmManager alarmManager, String name, long time) {
-        if (time > 0) {
-            int alarmType = powerConnected ? AlarmManager.RTC_WAKEUP : AlarmManager.RTC;
-            Intent intent = getSyncIntent(this, name);
-            PendingIntent pendingIntent = PendingIntent.getService(this, 0, intent, 0);
-            alarmManager.cancel(pendingIntent);
-            alarmManager.set(alarmType, time, pendingIntent);
+    /**
+     * Syncs the given listeners, along with the listeners that depend on them. If there are any,
+     * they sync as a pipeline once the listeners they depend on have succeeded.
+     *
+     * @return true if any of the given listeners' syncs is running on the pool
+     */
+    private boolean onHandleSyncs(List<ListenerInfo> syncs) {
+        if (!graph.isEmpty()) {
+            List<String> names = new ArrayList<>(syncs.size());
+            for (ListenerInfo listener : syncs) {
+                names.add(listener.name);
+            }
+            SyncGraph.Run run = graph.start(names);
+            if (!run.isIndependent()) {
+                return advance(new Pipeline(run));
+            }
+        }
+        boolean onPool = false;
+        // Listeners in a group are collected, so that the group syncs them all at once.
+        Map<String, List<ListenerInfo>> groups = null;
+        for (ListenerInfo listener : syncs) {
+            String group = listener.config.group();
+            if (group == null) {
+                onPool |= startSync(listener, null);
+            } else if (canStartSync(listener, null)) {
+                if (groups == null) {
+                    groups = new LinkedHashMap<>();
+                }
+                List<ListenerInfo> members = groups.get(group);
+                if (members == null) {
+                    members = new ArrayList<>();
+                    groups.put(group, members);
+                }
+                members.add(listener);
+            }
+        }
+        if (groups != null) {
+            for (Map.Entry<String, List<ListenerInfo>> entry : groups.entrySet()) {
+                onPool |= startGroupSync(entry.getKey(), entry.getValue(), null);
+            }
         }
+        return onPool;
     }
 
-    private void onHandleSync(TimeSync listener) {
-        if (!listener.config().enabled()) return;
+    /**
+     * Starts every listener in the pipeline that is ready.
+     *
+     * @return true if any of them is running on the pool
+     */
+    private boolean advance(Pipeline pipeline) {
+        boolean onPool = false;
+        List<String> ready;
+        // Syncs on the service thread complete right away, which may make more listeners ready.
+        while (!(ready = pipeline.run.pollReady()).isEmpty()) {
+            for (String name : ready) {
+                onPool |= startSync(listeners.get(name), pipeline);
+            }
+        }
+        if (pipeline.run.isDone() && !pipeline.recorded) {
+            pipeline.recorded = true;
+            TimeSyncMetrics.recordPipeline(pipeline.run.getCriticalPath());
+        }
+        return onPool;
+    }
 
+    /**
+     * Records that the given listener didn't sync successfully, so the ones that depend on it in
+     * the pipeline are skipped.
+     */
+    private void skipDependents(Pipeline pipeline, String name) {
+        if (pipeline == null) return;
+        for (String skipped : pipeline.run.onFailed(name)) {
+            listeners.get(skipped).metrics.recordDependencySkipped();
+        }
+        advance(pipeline);
+    }
+
+    /**
+     * Syncs the given listener, either right away or on the pool.
+     *
+     * @param pipeline the pipeline the listener is syncing in, or null
+     * @return true if the sync is running on the pool and will finish later
+     */
+    private boolean startSync(final ListenerInfo listener, final Pipeline pipeline) {
+        if (!canStartSync(listener, pipeline)) {
+            return false;
+        }
+        String group = listener.config.group();
+        if (group != null) {
+            return startGroupSync(group, Collections.singletonList(listener), pipeline);
+        }
+
+        // This is the first point the TimeSync is actually needed, so it's only created here.
+        final TimeSync instance = listener.getListener(this);
+        loadValidator(listener);
+        if (instance instanceof AsyncTimeSync) {
+            return startAsyncSync(listener, (AsyncTimeSync) instance, pipeline);
+        }
+        SyncExecutor executor = syncExecutor;
+        if (executor == null && listener.config.timeout() > 0) {
+            executor = getTimeoutExecutor();
+        }
+        if (executor == null) {
+            onSyncComplete(runSync(listener, instance, pipeline));
+            return false;
+        } else {
+            boolean willRun = executor.execute(listener.name, new Runnable() {
+                @Override
+                public void run() {
+                    CompletedSync completedSync = runSync(listener, instance, pipeline);
+                    // Null if it timed out, in which case it has already been handled.
+                    if (completedSync != null) {
+                        serviceHandler.obtainMessage(MSG_SYNC_COMPLETE, completedSync).sendToTarget();
+                    }
+                }
+            });
+            if (willRun) {
+                runningSyncs++;
+            } else {
+                // It already has a follow-up sync, whose own pipeline syncs the dependents.
+                skipDependents(pipeline, listener.name);
+            }
+            return willRun;
+        }
+    }
+
+    /**
+     * Checks that the given listener can sync right now. If it can't, this is recorded and handled
+     * the same way as if it had tried to.
+     */
+    private boolean canStartSync(ListenerInfo listener, Pipeline pipeline) {
+        if (!scheduler.canSync(listener.name)) {
+            listener.metrics.recordDisabled();
+            skipDependents(pipeline, listener.name);
+            return false;
+        }
+
+        if (listener.config.requiresNetwork() && !isNetworkConnected()) {
+            listener.metrics.recordNoNetwork();
+            onHandleFailureNoNetwork();
+            skipDependents(pipeline, listener.name);
+            return false;
+        }
+        if (!constraintsMet(listener.config)) {
+            listener.metrics.recordDeferred();
+            scheduler.defer(listener.name);
+            if (listener.config.requiresUnmetered()) {
+                // Listen for the device switching networks.
+                TimeSyncNetworkReceiver.enable(this);
+            }
+            skipDependents(pipeline, listener.name);
+            return false;
+        }
+        return true;
+    }
+
+    private void loadValidator(ListenerInfo listener) {
+        if (!listener.validatorLoaded) {
+            listener.validator = prefs.getValidator(listener.name);
+            listener.validatorLoaded = true;
+        }
+    }
+
+    private SyncExecutor getTimeoutExecutor() {
+        if (timeoutExecutor == null) {
+            timeoutExecutor = new SyncExecutor(1);
+        }
+        return timeoutExecutor;
+    }
+
+    /**
+     * Syncs the given listeners of a group together. If the group is already syncing, they sync
+     * once it finishes instead, unless they are already waiting to.
+     *
+     * @return true if the sync will finish later
+     */
+    private boolean startGroupSync(String group, List<ListenerInfo> members, Pipeline pipeline) {
+        List<GroupMember> waiting = syncingGroups.get(group);
+        if (waiting == null) {
+            List<GroupMember> run = new ArrayList<>(members.size());
+            for (ListenerInfo listener : members) {
+                run.add(new GroupMember(listener, pipeline));
+            }
+            runningSyncs += run.size();
+            return runGroup(group, run);
+        }
+        boolean willRun = false;
+        for (ListenerInfo listener : members) {
+            if (isWaiting(waiting, listener)) {
+                // It already has a follow-up sync, whose own pipeline syncs the dependents.
+                skipDependents(pipeline, listener.name);
+            } else {
+                waiting.add(new GroupMember(listener, pipeline));
+                runningSyncs++;
+                willRun = true;
+            }
+        }
+        return willRun;
+    }
+
+    private static boolean isWaiting(List<GroupMember> waiting, ListenerInfo listener) {
+        for (GroupMember member : waiting) {
+            if (member.listener == listener) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Runs the given group's sync, either right away or on the pool. The listeners must already be
+     * counted as running.
+     *
+     * @return true if the sync is running on the pool and will finish later
+     */
+    private boolean runGroup(String group, final List<GroupMember> members) {
+        syncingGroups.put(group, new ArrayList<GroupMember>());
+        final GroupRun run = new GroupRun(group, members.size());
+        final TimeSyncGroup instance = getGroup(group);
+        final List<GroupSync> syncs = new ArrayList<>(members.size());
+        boolean hasTimeout = false;
+        for (GroupMember member : members) {
+            ListenerInfo listener = member.listener;
+            loadValidator(listener);
+            SyncContext context = new SyncContext(listener.validator, listener.config.timeout());
+            syncs.add(new GroupSync(listener.getListener(this), context));
+            groupRuns.put(context, run);
+            hasTimeout |= listener.config.timeout() > 0;
+        }
+        SyncExecutor executor = syncExecutor;
+        if (executor == null && hasTimeout) {
+            executor = getTimeoutExecutor();
+        }
+        if (executor == null) {
+            onGroupComplete(runGroupSync(run, instance, members, syncs));
+            return false;
+        }
+        // Never dropped, since the group only runs again once this has finished.
+        executor.execute(group, new Runnable() {
+            @Override
+            public void run() {
+                CompletedGroup completedGroup = runGroupSync(run, instance, members, syncs);
+                serviceHandler.obtainMessage(MSG_GROUP_COMPLETE, completedGroup).sendToTarget();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Runs the given group's sync on the current thread. The timeouts only start here, so that
+     * time spent waiting for a thread doesn't count.
+     */
+    private CompletedGroup runGroupSync(GroupRun run, TimeSyncGroup instance, List<GroupMember> members,
+                                        List<GroupSync> syncs) {
+        List<CompletedSync> timeouts = new ArrayList<>(members.size());
+        for (int i = 0; i < members.size(); i++) {
+            GroupMember member = members.get(i);
+            SyncContext context = syncs.get(i).getSyncContext();
+            timeouts.add(scheduleTimeout(member.listener, member.pipeline, context));
+            context.start(Thread.currentThread());
+        }
+        long startTime = System.nanoTime();
+        Exception error = null;
+        try {
+            instance.onSyncGroup(this, Collections.unmodifiableList(syncs));
+        } catch (Exception e) {
+            error = e;
+        }
+        long duration = (System.nanoTime() - startTime) / 1000;
+        List<CompletedSync> completed = new ArrayList<>(members.size());
+        for (int i = 0; i < members.size(); i++) {
+            GroupMember member = members.get(i);
+            GroupSync sync = syncs.get(i);
+            if (error != null) {
+                sync.failIfUnreported(error);
+            }
+            CompletedSync completedSync = finishSync(member.listener, member.pipeline, sync.getSyncContext(),
+                    timeouts.get(i), sync.getResult(), sync.getError(), duration);
+            // Null if it timed out, in which case it has already been handled.
+            if (completedSync != null) {
+                completed.add(completedSync);
+            }
+        }
+        return new CompletedGroup(run, completed);
+    }
+
+    /**
+     * Handles the result of each listener of a group that finished syncing, and then syncs the
+     * listeners that were waiting for it.
+     */
+    private void onGroupComplete(CompletedGroup completedGroup) {
+        for (CompletedSync completedSync : completedGroup.syncs) {
+            groupRuns.remove(completedSync.context);
+            runningSyncs--;
+            onSyncComplete(completedSync);
+        }
+        // Everything in an abandoned run timed out, and the group has moved on since.
+        if (completedGroup.run.abandoned) return;
+        onGroupFinished(completedGroup.run);
+    }
+
+    /**
+     * Syncs the listeners that were waiting for the given group sync to finish.
+     */
+    private void onGroupFinished(GroupRun run) {
+        List<GroupMember> waiting = syncingGroups.remove(run.group);
+        if (waiting != null && !waiting.isEmpty()) {
+            runGroup(run.group, waiting);
+        }
+    }
+
+    private TimeSyncGroup getGroup(String name) {
+        TimeSyncGroup group = sGroups.get(name);
+        if (group == null) {
+            group = TimeSyncParser.createGroup(name);
+            group.onCreate(this);
+            sGroups.put(name, group);
+        }
+        return group;
+    }
+
+    /**
+     * Returns if the device meets the constraints of the given listener, other than having a
+     * network.
+     */
+    private boolean constraintsMet(TimeSync.Config config) {
+        if (config.requiresUnmetered() && isNetworkMetered()) {
+            return false;
+        }
+        boolean charging = scheduler.isPowerConnected();
+        if (config.requiresCharging() && !charging) {
+            return false;
+        }
+        return charging || config.minBattery() == 0 || getBatteryLevel() >= config.minBattery();
+    }
+
+    /**
+     * Resumes the deferred listeners whose constraints are now met.
+     */
+    private void resumeDeferred() {
+        boolean waitingForUnmetered = false;
+        for (ListenerInfo listener : listeners.values()) {
+            if (scheduler.getState(listener.name) != Scheduler.State.DEFERRED) continue;
+            if (constraintsMet(listener.config)) {
+                scheduler.resume(listener.name);
+            } else if (listener.config.requiresUnmetered()) {
+                waitingForUnmetered = true;
+            }
+        }
+        if (waitingForUnmetered) {
+            TimeSyncNetworkReceiver.enable(this);
+        }
+    }
+
+    private boolean isNetworkMetered() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        return ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+    }
+
+    /**
+     * Returns the battery level in percent, from the last battery broadcast.
+     */
+    private int getBatteryLevel() {
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) return 100;
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level < 0 || scale <= 0) return 100;
+        return level * 100 / scale;
+    }
+
+    private boolean isNetworkConnected() {
         ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
         NetworkInfo netInfo = cm.getActiveNetworkInfo();
+        return netInfo != null && netInfo.isConnectedOrConnecting();
+    }
 
-        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+    /**
+     * Runs the given listener's sync on the current thread.
+     *
+     * @return how the sync went, or null if it timed out first
+     */
+    private CompletedSync runSync(ListenerInfo info, TimeSync listener, Pipeline pipeline) {
+        SyncContext context = new SyncContext(info.validator, info.config.timeout());
+        CompletedSync timedOut = scheduleTimeout(info, pipeline, context);
+        long startTime = System.nanoTime();
+        context.start(Thread.currentThread());
+        SyncResult result = null;
+        Exception error = null;
+        try {
+            result = listener.sync(this, context);
+        } catch (Exception e) {
+            error = e;
+        }
+        long duration = (System.nanoTime() - startTime) / 1000;
+        return finishSync(info, pipeline, context, timedOut, result, error, duration);
+    }
 
-        if (netInfo != null && netInfo.isConnectedOrConnecting()) {
-            try {
-                listener.onSync(this);
-                prefs.setLastFailedTimeSpan(listener.getName(), 0);
-                add(alarmManager, listener);
-            } catch (Exception e) {
-                onHandleFailureSyncError(alarmManager, listener);
+    /**
+     * Starts the sync of an {@link AsyncTimeSync}. If it's already in flight, it syncs again once
+     * that finishes instead, unless it already has a follow-up sync.
+     *
+     * @return true if the sync will finish later
+     */
+    private boolean startAsyncSync(ListenerInfo info, AsyncTimeSync listener, Pipeline pipeline) {
+        if (asyncSyncs.contains(info.name)) {
+            if (asyncFollowUps.containsKey(info.name)) {
+                // The follow-up's own pipeline syncs the dependents.
+                skipDependents(pipeline, info.name);
+                return false;
             }
+            asyncFollowUps.put(info.name, pipeline);
         } else {
-            onHandleFailureNoNetwork(alarmManager, listener);
+            runAsyncSync(info, listener, pipeline);
         }
+        runningSyncs++;
+        return true;
     }
 
-    private void onHandleSyncInexact(TimeSync listener) {
-        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-        long range = listener.config().range();
-        long time = calculateTime(0, range);
-        remove(alarmManager, listener);
-        setAlarm(alarmManager, listener.getName(), time);
+    private void runAsyncSync(ListenerInfo info, AsyncTimeSync listener, Pipeline pipeline) {
+        asyncSyncs.add(info.name);
+        SyncContext context = new SyncContext(info.validator, info.config.timeout());
+        AsyncSync callback = new AsyncSync(info, pipeline, context, scheduleTimeout(info, pipeline, context));
+        context.start(null);
+        try {
+            listener.onSyncAsync(this, context, callback);
+        } catch (Exception e) {
+            callback.onFailure(e);
+        }
     }
 
-    private void onHandleUpdate(TimeSync listener) {
-        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-        remove(alarmManager, listener);
-        add(alarmManager, listener);
+    /**
+     * Schedules the given sync to be canceled once it runs out of time, if the listener has a
+     * timeout.
+     *
+     * @return the failure to handle it as if it times out, or null if it has no timeout
+     */
+    private CompletedSync scheduleTimeout(ListenerInfo info, Pipeline pipeline, SyncContext context) {
+        long timeout = info.config.timeout();
+        if (timeout <= 0) return null;
+        CompletedSync timedOut = new CompletedSync(info, pipeline, context, null,
+                new TimeoutException("TimeSync {" + info.name + "} timed out after " + timeout + "ms"), timeout * 1000);
+        serviceHandler.sendMessageDelayed(serviceHandler.obtainMessage(MSG_TIMEOUT, timedOut), timeout);
+        return timedOut;
     }
 
-    private void onHandleFailureNoNetwork(AlarmManager alarmManager, TimeSync listener) {
-        removeAll(alarmManager);
-        TimeSyncNetworkReceiver.enable(this);
+    /**
+     * Records how a sync went once it returns, on whichever thread it ran on.
+     *
+     * @return how the sync went, or null if it timed out first
+     */
+    private CompletedSync finishSync(ListenerInfo info, Pipeline pipeline, SyncContext context, CompletedSync timedOut,
+                                     SyncResult result, Exception error, long duration) {
+        if (!context.finish()) {
+            return null;
+        }
+        if (timedOut != null) {
+            serviceHandler.removeMessages(MSG_TIMEOUT, timedOut);
+        }
+        if (error != null) {
+            info.metrics.recordError(duration);
+            return new CompletedSync(info, pipeline, context, null, error, duration);
+        }
+        info.metrics.recordSuccess(duration);
+        if (result != null && result.isUpdated()) {
+            info.validator = result.getValidator();
+            return new CompletedSync(info, pipeline, context, result, null, duration);
+        }
+        return new CompletedSync(info, pipeline, context, null, null, duration);
     }
 
-    private void onHandleFailureSyncError(AlarmManager alarmManager, TimeSync listener) {
-        TimeSync.Config config = listener.config();
-        long span = config.every();
-        if (span < MIN_RETRY_CAP) span = MIN_RETRY_CAP;
-        long lastRetrySpan = prefs.getLastFailedTimeSpan(listener.getName());
-        long retrySpan = lastRetrySpan == 0 ? BASE_RETRY_SPAN : lastRetrySpan * 2;
-        if (retrySpan > span) retrySpan = span;
-
-        prefs.setLastFailedTimeSpan(listener.getName(), retrySpan);
-        long time = calculateTime(retrySpan, config.range());
-        setAlarm(alarmManager, listener.getName(), time);
+    /**
+     * Cancels a sync that ran out of time, unless it has finished since, and handles it as a
+     * failure.
+     */
+    private void onSyncTimeout(CompletedSync timedOut) {
+        if (!timedOut.context.cancel()) return;
+        runningSyncs--;
+        // Stop waiting for it, in case it doesn't stop when it's canceled. An AsyncTimeSync isn't
+        // taking up a thread, and a group is only stuck once all of its listeners are.
+        GroupRun groupRun = groupRuns.remove(timedOut.context);
+        boolean abandonGroup = groupRun != null && --groupRun.remaining == 0;
+        if (abandonGroup) {
+            groupRun.abandoned = true;
+        }
+        SyncExecutor executor = syncExecutor != null ? syncExecutor : timeoutExecutor;
+        if (executor != null) {
+            if (abandonGroup) {
+                executor.abandon(groupRun.group);
+            } else if (groupRun == null && !asyncSyncs.contains(timedOut.listener.name)) {
+                executor.abandon(timedOut.listener.name);
+            }
+        }
+        timedOut.listener.metrics.recordTimeout(timedOut.durationMicros);
+        onSyncComplete(timedOut);
+        if (abandonGroup) {
+            onGroupFinished(groupRun);
+        }
     }
 
-    private void removeAll(AlarmManager alarmManager) {
-        for (TimeSync listener : listeners.values()) {
-            remove(alarmManager, listener);
+    private void onSyncComplete(CompletedSync completedSync) {
+        String name = completedSync.listener.name;
+        resuming.remove(name);
+        if (completedSync.error == null) {
+            if (completedSync.result != null) {
+                // Set before the retry state is reset, so that both are persisted together.
+                prefs.setValidator(name, completedSync.result.getValidator());
+            }
+            scheduler.onSyncSucceeded(name);
+            if (completedSync.pipeline != null) {
+                completedSync.pipeline.run.onSucceeded(name, completedSync.durationMicros);
+                advance(completedSync.pipeline);
+            }
+        } else {
+            scheduler.onSyncFailed(name);
+            skipDependents(completedSync.pipeline, name);
+        }
+        if (asyncSyncs.remove(name) && asyncFollowUps.containsKey(name)) {
+            Pipeline pipeline = asyncFollowUps.remove(name);
+            ListenerInfo listener = completedSync.listener;
+            runAsyncSync(listener, (AsyncTimeSync) listener.getListener(this), pipeline);
         }
     }
 
-    private void remove(AlarmManager alarmManager, TimeSync listener) {
-        Intent intent = getSyncIntent(this, listener.getClass().getName());
-        PendingIntent pendingIntent = PendingIntent.getService(this, 0, intent, 0);
-        alarmManager.cancel(pendingIntent);
-        pendingIntent.cancel();
+    /**
+     * The callback given to an {@link AsyncTimeSync}. Only the first call counts.
+     */
+    private final class AsyncSync implements SyncCallback {
+        private final ListenerInfo info;
+        private final Pipeline pipeline;
+        private final SyncContext context;
+        // Null unless the listener has a timeout.
+        private final CompletedSync timedOut;
+        private final long startTime = System.nanoTime();
+        private final AtomicBoolean called = new AtomicBoolean();
+
+        AsyncSync(ListenerInfo info, Pipeline pipeline, SyncContext context, CompletedSync timedOut) {
+            this.info = info;
+            this.pipeline = pipeline;
+            this.context = context;
+            this.timedOut = timedOut;
+        }
+
+        @Override
+        public void onSuccess(SyncResult result) {
+            complete(result, null);
+        }
+
+        @Override
+        public void onFailure(Exception error) {
+            if (error == null) {
+                error = new NullPointerException("TimeSync {" + info.name + "} failed with a null error");
+            }
+            complete(null, error);
+        }
+
+        private void complete(SyncResult result, Exception error) {
+            if (!called.compareAndSet(false, true)) return;
+            long duration = (System.nanoTime() - startTime) / 1000;
+            CompletedSync completedSync = finishSync(info, pipeline, context, timedOut, result, error, duration);
+            // Null if it timed out, in which case it has already been handled.
+            if (completedSync != null) {
+                serviceHandler.obtainMessage(MSG_SYNC_COMPLETE, completedSync).sendToTarget();
+            }
+        }
     }
 
-    private long calculateTime(long timeSpan, long range) {
-        long currentTime = System.currentTimeMillis();
-        long exactTime = EventCalculator.getNextEvent(currentTime, timeSpan);
-        long rangeOffset = randomInRange(seed, 0, range);
-        return exactTime + rangeOffset;
+    private void onHandleFailureNoNetwork() {
+        scheduler.onNetworkLost();
+        TimeSyncNetworkReceiver.enable(this);
     }
 
-    private void onHandlePowerChanged(boolean connected) {
-        powerConnected = connected;
-        prefs.setPowerConnected(connected);
-        // Remove and re-add alarms to take into account the state change.
-        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-        removeAll(alarmManager);
-        for (TimeSync listener : listeners.values()) {
-            add(alarmManager, listener);
+    /**
+     * Syncs the listeners waiting to be resumed that are ready, as long as there are less than the
+     * limit running. If the network is lost again, the remaining listeners that require it wait
+     * for it to come back.
+     */
+    private void drainResume() {
+        serviceHandler.removeMessages(MSG_RESUME);
+        while (resuming.size() < resumeLimit) {
+            String name = scheduler.pollResume();
+            if (name == null) break;
+            ListenerInfo listener = listeners.get(name);
+            if (onHandleSync(listener)) {
+                resuming.add(name);
+            }
+        }
+        if (scheduler.isResuming() && resuming.size() < resumeLimit) {
+            long delay = scheduler.nextResumeTime() - System.currentTimeMillis();
+            serviceHandler.sendEmptyMessageDelayed(MSG_RESUME, delay);
         }
     }
 
-    private long findOrCreateSeed(TimeSyncPreferences prefs) {
-        long seed = prefs.getSeed();
-        if (seed != 0) return seed;
+    /**
+     * Uses the time zone looked up for the message being handled.
+     */
+    private final class ServiceClock implements Clock {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
 
-        // Use Random to evenly distribute values
-        seed = new Random(Settings.Secure.ANDROID_ID.hashCode()).nextLong();
-        prefs.setSeed(seed);
+        @Override
+        public TimeZone getTimeZone() {
+            return timeZone;
+        }
+    }
 
-        return seed;
+    /**
+     * Returns the PendingIntent for the given listener's alarm. Its extras never change, so it is
+     * created once and reused.
+     */
+    private PendingIntent getAlarmPendingIntent(String name) {
+        return sAlarmIntents.get(name, alarmIntentFactory);
     }
 
+    /**
+     * Sets alarms with the {@link AlarmManager} that start this service, or on the timer if the
+     * listener runs in-process.
+     *
+     * <p>Changes to the alarms of listeners are only collected while a message is handled. Since
+     * they are often canceled and set again for the same time, only the alarms that end up
+     * different than the ones already set are changed on {@link #apply()}.</p>
+     */
+    private final class ServiceAlarmSink implements AlarmSink {
+        private final AlarmTracker.Alarms alarmManagerAlarms = new AlarmTracker.Alarms() {
+            @Override
+            public void set(String name, int type, long time) {
+                AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+                // This replaces the alarm that is already set, if any.
+                alarmManager.set(type, time, getAlarmPendingIntent(name));
+            }
+
+            @Override
+            public void cancel(String name) {
+                AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+                // The PendingIntent itself is kept, so that it can be used for the next alarm.
+                alarmManager.cancel(getAlarmPendingIntent(name));
+            }
+        };
+
+        @Override
+        public void set(String name, long time) {
+            if (timer != null && foreground && runsInProcess(name)) {
+                if (onTimer.add(name)) {
+                    sAlarms.cancel(name);
+                }
+                timer.schedule(name, time);
+                return;
+            }
+            if (onTimer.remove(name)) {
+                timer.cancel(name);
+            }
+            sAlarms.set(name, time);
+        }
+
+        @Override
+        public void cancel(String name) {
+            if (onTimer.remove(name)) {
+                timer.cancel(name);
+            } else {
+                sAlarms.cancel(name);
+            }
+        }
+
+        /**
+         * Sets and cancels the alarms that have changed since the last call.
+         */
+        void apply() {
+            sAlarms.apply(getAlarmType(), alarmManagerAlarms);
+        }
+
+        @Override
+        public void setBatch(long time, List<String> names) {
+            AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+            Intent intent = getSyncBatchIntent(TimeSyncService.this, names.toArray(new String[names.size()]));
+            intent.putExtra(SCHEDULED_TIME, time);
+            PendingIntent pendingIntent = PendingIntent.getService(TimeSyncService.this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+            alarmManager.set(getAlarmType(), time, pendingIntent);
+        }
+
+        @Override
+        public void cancelBatch() {
+            PendingIntent pendingIntent = getSyncBatchPendingIntent(PendingIntent.FLAG_NO_CREATE);
+            if (pendingIntent != null) {
+                AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+                alarmManager.cancel(pendingIntent);
+                pendingIntent.cancel();
+            }
+        }
+    }
 }
@@ -0,0 +1,183 @@
+package me.tatarka.timesync.lib;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Wraps the {@code TimeSync} {@link SharedPreferences} so that writes don't have to block the
+ * caller. Values are put into an in-memory overlay that reads go through, and are written out
+ * either in the background with {@link #apply(TimeSync.OnEditCommittedListener)}, or right away
+ * with {@link #commit()} for state that must survive a crash. Writes that don't change anything
+ * are skipped, and all pending writes are flushed together in a single commit.
+ */
+class WriteBehindPreferences {
+    private static WriteBehindPreferences sInstance;
+
+    private final SharedPreferences prefs;
+    private final Map<String, Object> pending = new HashMap<>();
+    private final List<TimeSync.OnEditCommittedListener> callbacks = new ArrayList<>();
+    private final Object commitLock = new Object();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TimeSync Preferences");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private boolean flushScheduled;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            commit();
+        }
+    };
+
+    static synchronized WriteBehindPreferences get(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new WriteBehindPreferences(appContext != null ? appContext : context);
+        }
+        return sInstance;
+    }
+
+    private WriteBehindPreferences(Context context) {
+        prefs = context.getSharedPreferences(TimeSyncPreferences.NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the underlying preferences. Use this for registering change listeners, reads should
+     * go through this class so that they see pending writes.
+     */
+    SharedPreferences getSharedPreferences() {
+        return prefs;
+    }
+
+    synchronized boolean getBoolean(String key, boolean defValue) {
+        Object value = pending.get(key);
+        if (value != null) return (Boolean) value;
+        return prefs.getBoolean(key, defValue);
+    }
+
+    synchronized long getLong(String key, long defValue) {
+        Object value = pending.get(key);
+        if (value != null) return (Long) value;
+        return prefs.getLong(key, defValue);
+    }
+
+    synchronized String getString(String key, String defValue) {
+        Object value = pending.get(key);
+        if (value != null) return (String) value;
+        return prefs.getString(key, defValue);
+    }
+
+    synchronized void putBoolean(String key, boolean value) {
+        if (contains(key) && getBoolean(key, !value) == value) return;
+        pending.put(key, value);
+    }
+
+    synchronized void putLong(String key, long value) {
+        if (contains(key) && getLong(key, ~value) == value) return;
+        pending.put(key, value);
+    }
+
+    synchronized void putString(String key, String value) {
+        if (contains(key) && value.equals(getString(key, null))) return;
+        pending.put(key, value);
+    }
+
+    private boolean contains(String key) {
+        return pending.containsKey(key) || prefs.contains(key);
+    }
+
+    /**
+     * Writes all pending values in the background. If this is called several times before the
+     * background write happens, they are all written together.
+     *
+     * @param listener notified on the main thread once the values are written, may be null
+     */
+    void apply(TimeSync.OnEditCommittedListener listener) {
+        synchronized (this) {
+            if (listener != null) {
+                callbacks.add(listener);
+            }
+            if (flushScheduled) return;
+            flushScheduled = true;
+        }
+        executor.execute(flushTask);
+    }
+
+    /**
+     * Writes all pending values on the calling thread, and doesn't return until they are on disk.
+     *
+     * @return true if the values were successfully written
+     */
+    boolean commit() {
+        // Commits are serialized so that an older value can never be written after a newer one.
+        synchronized (commitLock) {
+            Map<String, Object> writes;
+            final List<TimeSync.OnEditCommittedListener> committedCallbacks;
+            synchronized (this) {
+                flushScheduled = false;
+                if (pending.isEmpty() && callbacks.isEmpty()) return true;
+                writes = new HashMap<>(pending);
+                committedCallbacks = new ArrayList<>(callbacks);
+                callbacks.clear();
+            }
+
+            final boolean success;
+            if (writes.isEmpty()) {
+                success = true;
+            } else {
+                SharedPreferences.Editor editor = prefs.edit();
+                for (Map.Entry<String, Object> entry : writes.entrySet()) {
+                    Object value = entry.getValue();
+                    if (value instanceof Boolean) {
+                        editor.putBoolean(entry.getKey(), (Boolean) value);
+                    } else if (value instanceof String) {
+                        editor.putString(entry.getKey(), (String) value);
+                    } else {
+                        editor.putLong(entry.getKey(), (Long) value);
+                    }
+                }
+                success = editor.commit();
+            }
+
+            // On failure everything stays pending, so that it is written with the next flush.
+            if (success) {
+                synchronized (this) {
+                    // Values may have been changed again while committing, those are still pending.
+                    for (Map.Entry<String, Object> entry : writes.entrySet()) {
+                        if (entry.getValue().equals(pending.get(entry.getKey()))) {
+                            pending.remove(entry.getKey());
+                        }
+                    }
+                }
+            }
+
+            if (!committedCallbacks.isEmpty()) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (TimeSync.OnEditCommittedListener callback : committedCallbacks) {
+                            callback.onEditCommitted(success);
+                        }
+                    }
+                });
+            }
+            return success;
+        }
+    }
+}
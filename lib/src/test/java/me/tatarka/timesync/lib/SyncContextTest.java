@@ -0,0 +1,95 @@
+package me.tatarka.timesync.lib;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyncContextTest {
+    private static final long TIMEOUT = 1000;
+
+    @Test
+    public void noTimeoutNeverRunsOut() {
+        SyncContext context = new SyncContext(null, 0);
+        context.start(Thread.currentThread());
+        assertEquals(Long.MAX_VALUE, context.getTimeRemaining());
+    }
+
+    @Test
+    public void timeDoesNotRunUntilStarted() throws Exception {
+        SyncContext context = new SyncContext(null, TIMEOUT);
+        Thread.sleep(50);
+        assertEquals(TIMEOUT, context.getTimeRemaining());
+
+        context.start(Thread.currentThread());
+        Thread.sleep(50);
+        long remaining = context.getTimeRemaining();
+        assertTrue(remaining < TIMEOUT && remaining > 0);
+    }
+
+    @Test
+    public void waitingForBusyPoolDoesNotCount() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            // Keep the only thread busy for half the timeout.
+            final CountDownLatch busy = new CountDownLatch(1);
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        busy.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            // Created when the sync is queued, like the service does.
+            final SyncContext context = new SyncContext(null, TIMEOUT);
+            final AtomicLong remaining = new AtomicLong();
+            Future<?> sync = pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    context.start(Thread.currentThread());
+                    remaining.set(context.getTimeRemaining());
+                    context.finish();
+                }
+            });
+            Thread.sleep(TIMEOUT / 2);
+            busy.countDown();
+            sync.get(5, TimeUnit.SECONDS);
+
+            assertTrue("only " + remaining.get() + "ms left", remaining.get() > TIMEOUT / 2);
+            assertFalse(context.isCanceled());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void canceledBeforeStartInterruptsThread() {
+        SyncContext context = new SyncContext(null, TIMEOUT);
+        assertTrue(context.cancel());
+        context.start(Thread.currentThread());
+        assertTrue(Thread.interrupted());
+        assertTrue(context.isCanceled());
+        assertFalse(context.finish());
+    }
+
+    @Test
+    public void asyncSyncStartsWithoutThread() {
+        SyncContext context = new SyncContext(null, TIMEOUT);
+        context.start(null);
+        assertTrue(context.getTimeRemaining() <= TIMEOUT);
+        assertTrue(context.cancel());
+        assertTrue(context.isCanceled());
+    }
+}
@@ -0,0 +1,356 @@
+package me.tatarka.timesync.lib;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static me.tatarka.timesync.lib.MathUtil.divCeil;
+import static me.tatarka.timesync.lib.MathUtil.listenerSeed;
+import static me.tatarka.timesync.lib.MathUtil.mix;
+import static me.tatarka.timesync.lib.MathUtil.randomInRange;
+import static me.tatarka.timesync.lib.ParseUtil.parseBackoff;
+import static me.tatarka.timesync.lib.ParseUtil.parseMaxAttempts;
+import static me.tatarka.timesync.lib.ParseUtil.parseUnitTimeSpan;
+
+/**
+ * Simulates the requests a fleet of devices makes to a server, so that it can be sized for them.
+ * Every device is scheduled with the same code the library uses, {@link EventCalculator} for the
+ * next event, {@link MathUtil#randomInRange(long, long, long)} for its offset within the range and
+ * {@link BackoffPolicy} for retries, and the time of every request is counted per second.
+ *
+ * <p>Run with {@code --help} for the options.</p>
+ */
+public class FleetSimulator {
+    // 2017-03-12 00:00 UTC, a day with a DST transition in America/New_York.
+    private static final long DEFAULT_START = 1489276800000L;
+    // Every device's seed before seeds were random, new Random(ANDROID_ID.hashCode()).nextLong().
+    private static final long CONSTANT_SEED = new Random("android_id".hashCode()).nextLong();
+    // Offsets are derived per listener, this stands in for the one being simulated.
+    private static final String LISTENER_NAME = "com.example.MySync";
+    // Devices of a time zone are split into chunks so that they can be spread over threads.
+    private static final int CHUNK_SIZE = 10000;
+
+    private static final String USAGE = "Usage: simulator [--option=value]...\n"
+            + "  --devices=1000000               number of devices\n"
+            + "  --every=\"1 hour\"                how often each device syncs\n"
+            + "  --range=\"5 minutes\"             range of the random offset of each device\n"
+            + "  --zones=UTC,America/New_York    time zones, devices are split evenly between them\n"
+            + "  --seeds=random|constant         a random seed per device, or the same one for all\n"
+            + "  --failure=0.0                   chance that any request fails\n"
+            + "  --outage=\"2 hours\"              when the server starts failing every request\n"
+            + "  --outageLength=\"10 minutes\"     how long the outage lasts\n"
+            + "  --backoff=exponential           exponential, full_jitter or decorrelated_jitter\n"
+            + "  --maxAttempts=0                 attempts before giving up on a failed sync, 0 for no limit\n"
+            + "  --duration=\"1 day\"              how long to simulate\n"
+            + "  --start=" + DEFAULT_START + "         start time in unix milliseconds\n"
+            + "  --seed=0                        seed for everything random in the simulation\n"
+            + "  --threads=" + Runtime.getRuntime().availableProcessors() + "                     threads to simulate on\n"
+            + "  --csv=FILE                      also write the requests of every second to FILE";
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        if (options == null) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        long[] counts = simulate(options);
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+
+        printReport(System.out, options, counts, elapsedMillis);
+        if (options.csv != null) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(options.csv))) {
+                out.println("second,requests");
+                for (int i = 0; i < counts.length; i++) {
+                    out.println(i + "," + counts[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the simulation.
+     *
+     * @return the number of requests in each second since the start
+     */
+    static long[] simulate(final Options options) throws InterruptedException, ExecutionException {
+        final int seconds = (int) divCeil(options.duration, 1000);
+        ExecutorService executor = Executors.newFixedThreadPool(options.threads);
+        try {
+            long[] counts = new long[seconds];
+            // EventCalculator caches the current day, so time zones are simulated one after another
+            // instead of having threads fight over it.
+            for (int zone = 0; zone < options.zones.length; zone++) {
+                final TimeZone timeZone = options.zones[zone];
+                int first = (int) ((long) zone * options.devices / options.zones.length);
+                int last = (int) ((long) (zone + 1) * options.devices / options.zones.length);
+                List<Future<long[]>> results = new ArrayList<>();
+                for (int from = first; from < last; from += CHUNK_SIZE) {
+                    final int chunkFrom = from;
+                    final int chunkTo = Math.min(from + CHUNK_SIZE, last);
+                    results.add(executor.submit(new Callable<long[]>() {
+                        @Override
+                        public long[] call() {
+                            long[] chunkCounts = new long[seconds];
+                            for (int device = chunkFrom; device < chunkTo; device++) {
+                                simulateDevice(options, timeZone, device, chunkCounts);
+                            }
+                            return chunkCounts;
+                        }
+                    }));
+                }
+                for (Future<long[]> result : results) {
+                    long[] chunkCounts = result.get();
+                    for (int i = 0; i < seconds; i++) {
+                        counts[i] += chunkCounts[i];
+                    }
+                }
+            }
+            return counts;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Simulates a single device the same way TimeSyncService schedules it, adding each of its
+     * requests to the counts.
+     */
+    static void simulateDevice(Options options, TimeZone timeZone, int device, long[] counts) {
+        long start = options.start;
+        long end = start + options.duration;
+        long every = options.every;
+        long seed = options.constantSeeds ? CONSTANT_SEED : mix(options.seed + device);
+        long offset = randomInRange(listenerSeed(seed, LISTENER_NAME), 0, options.range);
+        // xorshift64*, seeded separately from the device's seed so failures don't follow offsets.
+        long random = mix(~options.seed - device) | 1;
+
+        int attempt = 0;
+        long lastDelay = 0;
+        // The alarm fires a moment after it was set for, so the next event is after that time.
+        long time = EventCalculator.getNextEvent(start + 1, every, timeZone) + offset;
+        while (time < end) {
+            counts[(int) ((time - start) / 1000)]++;
+
+            random ^= random >>> 12;
+            random ^= random << 25;
+            random ^= random >>> 27;
+            long draw = random * 0x2545f4914f6cdd1dL;
+
+            boolean failed = (time >= options.outageStart && time < options.outageEnd)
+                    || (draw >>> 11) * 0x1.0p-53 < options.failureRate;
+            if (failed) {
+                attempt++;
+            }
+            if (!failed || (options.maxAttempts > 0 && attempt >= options.maxAttempts)) {
+                attempt = 0;
+                lastDelay = 0;
+                time = EventCalculator.getNextEvent(time + 1, every, timeZone) + offset;
+            } else {
+                // Use the draw from the other end so that it's independent of the failure.
+                long delay = options.backoff.nextDelay(attempt, lastDelay, every, Long.reverse(draw));
+                lastDelay = delay;
+                if (options.backoff == BackoffPolicy.EXPONENTIAL) {
+                    time = EventCalculator.getNextEvent(time + 1, delay, timeZone) + offset;
+                } else {
+                    time = time + delay;
+                }
+            }
+        }
+    }
+
+    static void printReport(PrintStream out, Options options, long[] counts, long elapsedMillis) {
+        long total = 0;
+        long peak = 0;
+        int peakSecond = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i];
+            if (counts[i] > peak) {
+                peak = counts[i];
+                peakSecond = i;
+            }
+        }
+        double mean = (double) total / counts.length;
+
+        out.printf(Locale.US, "Simulated %d devices over %d seconds in %d ms%n", options.devices, counts.length, elapsedMillis);
+        out.printf(Locale.US, "Requests:     %d%n", total);
+        out.printf(Locale.US, "Mean:         %.1f/s%n", mean);
+        out.printf(Locale.US, "Peak:         %d/s at %s%n", peak, formatSecond(peakSecond));
+        out.printf(Locale.US, "Peak to mean: %.2f%n", mean == 0 ? 0 : peak / mean);
+
+        long[] sorted = Arrays.copyOf(counts, counts.length);
+        Arrays.sort(sorted);
+        out.printf(Locale.US, "Percentiles:  p50 %d/s, p90 %d/s, p99 %d/s, p99.9 %d/s%n",
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 99.9));
+
+        // How many seconds had a request rate in each power of two.
+        out.println();
+        out.println("Requests/s          Seconds");
+        int[] buckets = new int[65];
+        for (long count : counts) {
+            buckets[count == 0 ? 0 : 64 - Long.numberOfLeadingZeros(count)]++;
+        }
+        int maxBucket = 0;
+        for (int bucket : buckets) {
+            maxBucket = Math.max(maxBucket, bucket);
+        }
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] == 0) continue;
+            String label = i == 0 ? "0" : (1L << (i - 1)) + "-" + ((1L << i) - 1);
+            int width = (int) Math.ceil(40.0 * buckets[i] / maxBucket);
+            out.printf(Locale.US, "%-19s %7d %s%n", label, buckets[i], repeat('#', width));
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static String formatSecond(int second) {
+        return String.format(Locale.US, "+%02d:%02d:%02d", second / 3600, second / 60 % 60, second % 60);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    static final class Options {
+        int devices = 1000000;
+        long every = parseUnitTimeSpan("1 hour");
+        long range = parseUnitTimeSpan("5 minutes");
+        TimeZone[] zones = {TimeZone.getTimeZone("UTC"), TimeZone.getTimeZone("America/New_York")};
+        boolean constantSeeds;
+        double failureRate;
+        long outageStart = Long.MAX_VALUE;
+        long outageEnd = Long.MAX_VALUE;
+        BackoffPolicy backoff = BackoffPolicy.EXPONENTIAL;
+        int maxAttempts;
+        long duration = parseUnitTimeSpan("1 day");
+        long start = DEFAULT_START;
+        long seed;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String csv;
+
+        /**
+         * Parses the command line arguments.
+         *
+         * @return the options, or null if help was requested
+         * @throws IllegalArgumentException if an argument is invalid
+         */
+        static Options parse(String[] args) throws IllegalArgumentException {
+            Options options = new Options();
+            long outage = -1;
+            long outageLength = parseUnitTimeSpan("10 minutes");
+            for (String arg : args) {
+                if (arg.equals("--help") || arg.equals("-h")) {
+                    return null;
+                }
+                int split = arg.indexOf('=');
+                if (!arg.startsWith("--") || split < 0) {
+                    throw new IllegalArgumentException("Invalid argument: " + arg);
+                }
+                String name = arg.substring(2, split);
+                String value = arg.substring(split + 1);
+                try {
+                    switch (name) {
+                        case "devices":
+                            options.devices = Integer.parseInt(value);
+                            break;
+                        case "every":
+                            options.every = parseUnitTimeSpan(value);
+                            break;
+                        case "range":
+                            options.range = parseUnitTimeSpan(value);
+                            break;
+                        case "zones": {
+                            String[] ids = value.split(",");
+                            options.zones = new TimeZone[ids.length];
+                            for (int i = 0; i < ids.length; i++) {
+                                options.zones[i] = TimeZone.getTimeZone(ids[i]);
+                                if (!options.zones[i].getID().equals(ids[i])) {
+                                    throw new IllegalArgumentException("Unknown time zone: " + ids[i]);
+                                }
+                            }
+                            break;
+                        }
+                        case "seeds":
+                            if (!value.equals("random") && !value.equals("constant")) {
+                                throw new IllegalArgumentException("seeds must be \"random\" or \"constant\", was: " + value);
+                            }
+                            options.constantSeeds = value.equals("constant");
+                            break;
+                        case "failure":
+                            options.failureRate = Double.parseDouble(value);
+                            break;
+                        case "outage":
+                            outage = parseUnitTimeSpan(value);
+                            break;
+                        case "outageLength":
+                            outageLength = parseUnitTimeSpan(value);
+                            break;
+                        case "backoff":
+                            options.backoff = parseBackoff(value);
+                            break;
+                        case "maxAttempts":
+                            options.maxAttempts = parseMaxAttempts(value);
+                            break;
+                        case "duration":
+                            options.duration = parseUnitTimeSpan(value);
+                            break;
+                        case "start":
+                            options.start = Long.parseLong(value);
+                            break;
+                        case "seed":
+                            options.seed = Long.parseLong(value);
+                            break;
+                        case "threads":
+                            options.threads = Integer.parseInt(value);
+                            break;
+                        case "csv":
+                            options.csv = value;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown option: " + name);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid " + name + ": " + value);
+                }
+            }
+
+            if (options.devices < 1) throw new IllegalArgumentException("devices must be at least 1");
+            if (options.every <= 0) throw new IllegalArgumentException("every must be more than 0");
+            if (options.range < 0) throw new IllegalArgumentException("range must not be negative");
+            if (options.duration < 1000) throw new IllegalArgumentException("duration must be at least 1 second");
+            if (options.threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+            if (outage >= 0) {
+                options.outageStart = options.start + outage;
+                options.outageEnd = options.outageStart + outageLength;
+            }
+            return options;
+        }
+    }
+}